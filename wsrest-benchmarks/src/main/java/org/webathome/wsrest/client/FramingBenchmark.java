@@ -0,0 +1,55 @@
+package org.webathome.wsrest.client;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+// Building the frame by itself, and a whole request on a socket that answers right away. The
+// latter includes registering the request, sending the frame and handling the response.
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class FramingBenchmark {
+    private Connection connection;
+    private String response;
+    private Callback<String> callback;
+
+    @Setup
+    public void setup() {
+        connection = new Connection("ws://localhost/", new StubWebSocketFactory("hello"));
+
+        callback = new Callback<String>() {
+            @Override
+            public void call(String value, Throwable e) {
+                response = value;
+            }
+        };
+    }
+
+    @TearDown
+    public void tearDown() {
+        connection.close();
+    }
+
+    @Benchmark
+    public String buildFrame() {
+        return Connection.buildFrame(RequestType.GET, "/echo/echoGet?value=hello", null, 42);
+    }
+
+    @Benchmark
+    public String buildFrameWithBody() {
+        return Connection.buildFrame(RequestType.POST, "/echo/echoPost", "value=hello&other=world", 42);
+    }
+
+    @Benchmark
+    public String execute() throws WsRestException {
+        connection.newRequest("/echo/echoGet", RequestType.GET)
+            .addQueryParam("value", "hello")
+            .getText(callback);
+
+        return response;
+    }
+}
@@ -0,0 +1,57 @@
+package org.webathome.wsrest.client;
+
+import com.google.gson.reflect.TypeToken;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class ParameterParserBenchmark {
+    private ParameterParser valueParser;
+    private ParameterParser arrayParser;
+    private ParameterParser listParser;
+    private ParameterParser enumParser;
+
+    private String value = "12345";
+    private String[] values = {"1", "2", "3", "4", "5", "6", "7", "8"};
+    private String enumValue = "SECONDS";
+
+    @Setup
+    public void setup() throws WsRestException {
+        valueParser = ParameterParser.valueParser(Integer.class);
+        arrayParser = ParameterParser.valueParser(int[].class);
+        listParser = ParameterParser.valueParser(new TypeToken<List<Integer>>(){}.getType());
+        enumParser = ParameterParser.valueParser(TimeUnit.class);
+    }
+
+    @Benchmark
+    public Object decodeValue() throws WsRestException {
+        return valueParser.decode(value);
+    }
+
+    @Benchmark
+    public Object decodeArray() throws WsRestException {
+        return arrayParser.decode(values);
+    }
+
+    @Benchmark
+    public Object decodeList() throws WsRestException {
+        return listParser.decode(values);
+    }
+
+    @Benchmark
+    public Object decodeEnum() throws WsRestException {
+        return enumParser.decode(enumValue);
+    }
+
+    @Benchmark
+    public Object lookupParser() throws WsRestException {
+        return ParameterParser.valueParser(int[].class);
+    }
+}
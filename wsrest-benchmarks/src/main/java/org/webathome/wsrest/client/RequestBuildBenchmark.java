@@ -0,0 +1,65 @@
+package org.webathome.wsrest.client;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+// The benchmarks live in the package of the client so they can reach the classes that aren't
+// part of its public API.
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class RequestBuildBenchmark {
+    private Connection connection;
+    private PreparedRequest prepared;
+    private Item item;
+
+    @Setup
+    public void setup() throws WsRestException {
+        connection = new Connection("ws://localhost/", new StubWebSocketFactory("hello"));
+
+        prepared = connection.prepareRequest("/users/{id}/posts", RequestType.GET)
+            .addQueryParam("page")
+            .addQueryParam("tag");
+
+        item = new Item();
+        item.id = 42;
+        item.name = "item";
+        item.tags = Arrays.asList("a", "b", "c");
+    }
+
+    @TearDown
+    public void tearDown() {
+        connection.close();
+    }
+
+    @Benchmark
+    public Request pathAndQuery() throws WsRestException {
+        return connection.newRequest("/users/{id}/posts", RequestType.GET)
+            .addPathParam("id", 42)
+            .addQueryParam("page", 3)
+            .addQueryParam("tag", "a b");
+    }
+
+    @Benchmark
+    public Request jsonBody() throws WsRestException {
+        return connection.newRequest("/users", RequestType.POST)
+            .setJsonBody(item);
+    }
+
+    @Benchmark
+    public Request prepared() throws WsRestException {
+        return prepared.bind(42, 3, "a b");
+    }
+
+    public static class Item {
+        private int id;
+        private String name;
+        private List<String> tags;
+    }
+}
@@ -0,0 +1,50 @@
+package org.webathome.wsrest.client;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+// Feeds response frames to the connection as if they came from the server. The responses are for
+// a request that has already completed, so this measures parsing the frame and looking up the
+// request, without calling a callback.
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class ResponseParseBenchmark {
+    private Connection connection;
+    private WebSocketCallback socket;
+    private String ok;
+    private String okMaxAge;
+
+    @Setup
+    public void setup() throws WsRestException {
+        StubWebSocketFactory webSocketFactory = new StubWebSocketFactory("hello");
+
+        connection = new Connection("ws://localhost/", webSocketFactory);
+
+        connection.newRequest("/echo/echoGet", RequestType.GET).getText();
+
+        socket = webSocketFactory.getCallback();
+
+        ok = "OK 1\n{\"id\":42,\"name\":\"item\",\"tags\":[\"a\",\"b\",\"c\"]}";
+        okMaxAge = "OK 1 60\n{\"id\":42,\"name\":\"item\",\"tags\":[\"a\",\"b\",\"c\"]}";
+    }
+
+    @TearDown
+    public void tearDown() {
+        connection.close();
+    }
+
+    @Benchmark
+    public void ok() {
+        socket.onStringAvailable(ok);
+    }
+
+    @Benchmark
+    public void okMaxAge() {
+        socket.onStringAvailable(okMaxAge);
+    }
+}
@@ -0,0 +1,87 @@
+package org.webathome.wsrest.client;
+
+import com.google.gson.Gson;
+import org.openjdk.jmh.annotations.*;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+// Feeds stream messages to the connection as if they came from the server, all the way to the
+// callback of the stream. This includes the window updates the stream sends back.
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class StreamDeliveryBenchmark {
+    private static final int BATCH_SIZE = 8;
+
+    private Connection connection;
+    private Stream stream;
+    private WebSocketCallback socket;
+    private String message;
+    private String batch;
+    private long received;
+
+    @Setup
+    public void setup() throws WsRestException {
+        StubWebSocketFactory webSocketFactory = new StubWebSocketFactory(null);
+
+        connection = new Connection("ws://localhost/", webSocketFactory);
+
+        stream = connection.newRequest("/stream/echo", RequestType.STREAM).getStream();
+
+        stream.setCallback(new Stream.Callback() {
+            @Override
+            public void onMessage(String message) {
+                received++;
+            }
+
+            @Override
+            public void onBinary(ByteBuffer message) {
+                received++;
+            }
+
+            @Override
+            public void onClosed() {
+            }
+
+            @Override
+            public void onError(Throwable e) {
+            }
+        });
+
+        socket = webSocketFactory.getCallback();
+
+        String[] messages = new String[BATCH_SIZE];
+        for (int i = 0; i < messages.length; i++) {
+            messages[i] = "message " + i;
+        }
+
+        message = "MESSAGE 1\nmessage";
+        batch = "MESSAGE 1 " + BATCH_SIZE + "\n" + new Gson().toJson(messages);
+    }
+
+    @TearDown
+    public void tearDown() throws WsRestException {
+        stream.close();
+
+        connection.close();
+    }
+
+    @Benchmark
+    public long message() {
+        socket.onStringAvailable(message);
+
+        return received;
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BATCH_SIZE)
+    public long batch() {
+        socket.onStringAvailable(batch);
+
+        return received;
+    }
+}
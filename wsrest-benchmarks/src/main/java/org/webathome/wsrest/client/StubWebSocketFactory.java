@@ -0,0 +1,72 @@
+package org.webathome.wsrest.client;
+
+import java.nio.ByteBuffer;
+
+// Creates web sockets that answer every request as soon as it's sent, so the benchmarks measure
+// the client without a network or a server. Requests get an OK with the response body and
+// streams are opened. Stream messages, window updates and closes aren't answered.
+class StubWebSocketFactory implements WebSocketFactory {
+    private final String responseBody;
+    private volatile WebSocketCallback callback;
+
+    public StubWebSocketFactory(String responseBody) {
+        this.responseBody = responseBody;
+    }
+
+    // The callback of the last socket, to feed frames to the connection as if they came from
+    // the server.
+    public WebSocketCallback getCallback() {
+        return callback;
+    }
+
+    @Override
+    public WebSocket newInstance(String url, WebSocketCallback callback) throws Exception {
+        this.callback = callback;
+
+        callback.onOpen();
+
+        return new StubWebSocket(callback);
+    }
+
+    private class StubWebSocket implements WebSocket {
+        private final WebSocketCallback callback;
+
+        public StubWebSocket(WebSocketCallback callback) {
+            this.callback = callback;
+        }
+
+        @Override
+        public void sendText(String value) {
+            int end = value.indexOf('\n');
+            if (end == -1) {
+                end = value.length();
+            }
+
+            String id = value.substring(value.lastIndexOf(' ', end - 1) + 1, end);
+
+            if (value.startsWith("STREAM ")) {
+                callback.onStringAvailable("OPEN " + id);
+            } else if (
+                value.startsWith("GET ") ||
+                value.startsWith("POST ") ||
+                value.startsWith("PUT ") ||
+                value.startsWith("DELETE ")
+            ) {
+                callback.onStringAvailable("OK " + id + "\n" + responseBody);
+            }
+        }
+
+        @Override
+        public void sendBinary(ByteBuffer value) {
+        }
+
+        @Override
+        public boolean isWritable() {
+            return true;
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+}
@@ -0,0 +1,89 @@
+package org.webathome.wsrest.server;
+
+import com.google.gson.reflect.TypeToken;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class ParameterParserBenchmark {
+    private ParameterParser valueParser;
+    private ParameterParser arrayParser;
+    private ParameterParser listParser;
+    private ParameterParser jsonParser;
+
+    private String value = "12345";
+    private String[] values = {"1", "2", "3", "4", "5", "6", "7", "8"};
+    private String json = "{\"id\":42,\"name\":\"item\",\"tags\":[\"a\",\"b\",\"c\"]}";
+
+    private Integer decodedValue;
+    private int[] decodedArray;
+    private List<Integer> decodedList;
+    private Item decodedItem;
+
+    @Setup
+    public void setup() throws WsRestException {
+        valueParser = ParameterParser.valueParser(Integer.class);
+        arrayParser = ParameterParser.valueParser(int[].class);
+        listParser = ParameterParser.valueParser(new TypeToken<List<Integer>>(){}.getType());
+        jsonParser = ParameterParser.jsonParser(Item.class);
+
+        decodedValue = 12345;
+        decodedArray = new int[]{1, 2, 3, 4, 5, 6, 7, 8};
+        decodedList = Arrays.asList(1, 2, 3, 4, 5, 6, 7, 8);
+        decodedItem = (Item)jsonParser.decode(json);
+    }
+
+    @Benchmark
+    public Object decodeValue() throws WsRestException {
+        return valueParser.decode(value);
+    }
+
+    @Benchmark
+    public Object decodeArray() throws WsRestException {
+        return arrayParser.decode(values);
+    }
+
+    @Benchmark
+    public Object decodeList() throws WsRestException {
+        return listParser.decode(values);
+    }
+
+    @Benchmark
+    public Object decodeJson() throws WsRestException {
+        return jsonParser.decode(json);
+    }
+
+    @Benchmark
+    public Object encodeValue() throws WsRestException {
+        return valueParser.encode(decodedValue);
+    }
+
+    @Benchmark
+    public Object encodeArray() throws WsRestException {
+        return arrayParser.encode(decodedArray);
+    }
+
+    @Benchmark
+    public Object encodeList() throws WsRestException {
+        return listParser.encode(decodedList);
+    }
+
+    @Benchmark
+    public Object encodeJson() throws WsRestException {
+        return jsonParser.encode(decodedItem);
+    }
+
+    public static class Item {
+        private int id;
+        private String name;
+        private List<String> tags;
+    }
+}
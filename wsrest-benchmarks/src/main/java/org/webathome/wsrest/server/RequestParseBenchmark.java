@@ -0,0 +1,34 @@
+package org.webathome.wsrest.server;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+// The benchmarks live in the package of the server so they can reach the classes that aren't
+// part of its public API.
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class RequestParseBenchmark {
+    private String get = "GET /echo/echoGet?value=hello 42";
+    private String post = "POST /echo/echoPost 43\nvalue=hello&other=world";
+    private String message = "MESSAGE /stream/echo 44\n{\"id\":1,\"name\":\"message\"}";
+
+    @Benchmark
+    public Request parseGet() throws WsRestException {
+        return Request.parse(get);
+    }
+
+    @Benchmark
+    public Request parsePost() throws WsRestException {
+        return Request.parse(post);
+    }
+
+    @Benchmark
+    public Request parseMessage() throws WsRestException {
+        return Request.parse(message);
+    }
+}
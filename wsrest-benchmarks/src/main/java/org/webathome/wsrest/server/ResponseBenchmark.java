@@ -0,0 +1,39 @@
+package org.webathome.wsrest.server;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class ResponseBenchmark {
+    private Response ok;
+    private Response okMaxAge;
+    private Response empty;
+
+    @Setup
+    public void setup() {
+        ok = new Response(ResponseType.OK, 42, "{\"id\":1,\"name\":\"response\",\"values\":[1,2,3]}");
+        okMaxAge = new Response(ResponseType.OK, 43, 60, "hello");
+        empty = new Response(ResponseType.CLOSE, 44, null);
+    }
+
+    @Benchmark
+    public String okToString() {
+        return ok.toString();
+    }
+
+    @Benchmark
+    public String okMaxAgeToString() {
+        return okMaxAge.toString();
+    }
+
+    @Benchmark
+    public String emptyToString() {
+        return empty.toString();
+    }
+}
@@ -0,0 +1,280 @@
+package org.webathome.wsrest.server;
+
+import org.openjdk.jmh.annotations.*;
+
+import javax.websocket.SendHandler;
+import javax.websocket.SendResult;
+import javax.ws.rs.*;
+import javax.ws.rs.core.MediaType;
+import java.nio.ByteBuffer;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+// The context picks the endpoint by the start of the path. The endpoint then looks for the
+// method, first the ones with a plain path and then the ones with path parameters. The service
+// has 16 methods of each kind. The order in which reflection returns them isn't defined, so
+// the benchmarks go through all paths of a kind and measure the average search.
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class RoutingBenchmark {
+    private static final int METHOD_COUNT = 16;
+
+    private ScheduledExecutorService scheduler;
+    private BufferedSession session;
+    private EndpointDescription endpoint;
+    private Request[] plain;
+    private Request[] pattern;
+    private int plainIndex;
+    private int patternIndex;
+
+    @Setup
+    public void setup() throws Exception {
+        scheduler = Executors.newSingleThreadScheduledExecutor();
+        session = new BufferedSession(new NullTransport(), null, scheduler, new StreamRegistry(scheduler, 0));
+        endpoint = new EndpointDescription(BenchmarkService.class);
+
+        plain = new Request[METHOD_COUNT];
+        pattern = new Request[METHOD_COUNT];
+
+        for (int i = 0; i < METHOD_COUNT; i++) {
+            plain[i] = Request.parse("GET /bench/plain" + i + "?value=hello " + (i + 1));
+            pattern[i] = Request.parse("GET /bench/pattern" + i + "/hello " + (i + 1));
+        }
+    }
+
+    @TearDown
+    public void tearDown() {
+        scheduler.shutdownNow();
+    }
+
+    @Benchmark
+    public Response plain() throws WsRestException {
+        plainIndex = (plainIndex + 1) % METHOD_COUNT;
+
+        return endpoint.execute(plain[plainIndex], session);
+    }
+
+    @Benchmark
+    public Response pattern() throws WsRestException {
+        patternIndex = (patternIndex + 1) % METHOD_COUNT;
+
+        return endpoint.execute(pattern[patternIndex], session);
+    }
+
+    @Path("/bench")
+    @Produces(MediaType.TEXT_PLAIN)
+    public static class BenchmarkService {
+        @GET
+        @Path("plain0")
+        public String plain0(@QueryParam("value") String value) {
+            return value;
+        }
+
+        @GET
+        @Path("plain1")
+        public String plain1(@QueryParam("value") String value) {
+            return value;
+        }
+
+        @GET
+        @Path("plain2")
+        public String plain2(@QueryParam("value") String value) {
+            return value;
+        }
+
+        @GET
+        @Path("plain3")
+        public String plain3(@QueryParam("value") String value) {
+            return value;
+        }
+
+        @GET
+        @Path("plain4")
+        public String plain4(@QueryParam("value") String value) {
+            return value;
+        }
+
+        @GET
+        @Path("plain5")
+        public String plain5(@QueryParam("value") String value) {
+            return value;
+        }
+
+        @GET
+        @Path("plain6")
+        public String plain6(@QueryParam("value") String value) {
+            return value;
+        }
+
+        @GET
+        @Path("plain7")
+        public String plain7(@QueryParam("value") String value) {
+            return value;
+        }
+
+        @GET
+        @Path("plain8")
+        public String plain8(@QueryParam("value") String value) {
+            return value;
+        }
+
+        @GET
+        @Path("plain9")
+        public String plain9(@QueryParam("value") String value) {
+            return value;
+        }
+
+        @GET
+        @Path("plain10")
+        public String plain10(@QueryParam("value") String value) {
+            return value;
+        }
+
+        @GET
+        @Path("plain11")
+        public String plain11(@QueryParam("value") String value) {
+            return value;
+        }
+
+        @GET
+        @Path("plain12")
+        public String plain12(@QueryParam("value") String value) {
+            return value;
+        }
+
+        @GET
+        @Path("plain13")
+        public String plain13(@QueryParam("value") String value) {
+            return value;
+        }
+
+        @GET
+        @Path("plain14")
+        public String plain14(@QueryParam("value") String value) {
+            return value;
+        }
+
+        @GET
+        @Path("plain15")
+        public String plain15(@QueryParam("value") String value) {
+            return value;
+        }
+
+        @GET
+        @Path("pattern0/{value}")
+        public String pattern0(@PathParam("value") String value) {
+            return value;
+        }
+
+        @GET
+        @Path("pattern1/{value}")
+        public String pattern1(@PathParam("value") String value) {
+            return value;
+        }
+
+        @GET
+        @Path("pattern2/{value}")
+        public String pattern2(@PathParam("value") String value) {
+            return value;
+        }
+
+        @GET
+        @Path("pattern3/{value}")
+        public String pattern3(@PathParam("value") String value) {
+            return value;
+        }
+
+        @GET
+        @Path("pattern4/{value}")
+        public String pattern4(@PathParam("value") String value) {
+            return value;
+        }
+
+        @GET
+        @Path("pattern5/{value}")
+        public String pattern5(@PathParam("value") String value) {
+            return value;
+        }
+
+        @GET
+        @Path("pattern6/{value}")
+        public String pattern6(@PathParam("value") String value) {
+            return value;
+        }
+
+        @GET
+        @Path("pattern7/{value}")
+        public String pattern7(@PathParam("value") String value) {
+            return value;
+        }
+
+        @GET
+        @Path("pattern8/{value}")
+        public String pattern8(@PathParam("value") String value) {
+            return value;
+        }
+
+        @GET
+        @Path("pattern9/{value}")
+        public String pattern9(@PathParam("value") String value) {
+            return value;
+        }
+
+        @GET
+        @Path("pattern10/{value}")
+        public String pattern10(@PathParam("value") String value) {
+            return value;
+        }
+
+        @GET
+        @Path("pattern11/{value}")
+        public String pattern11(@PathParam("value") String value) {
+            return value;
+        }
+
+        @GET
+        @Path("pattern12/{value}")
+        public String pattern12(@PathParam("value") String value) {
+            return value;
+        }
+
+        @GET
+        @Path("pattern13/{value}")
+        public String pattern13(@PathParam("value") String value) {
+            return value;
+        }
+
+        @GET
+        @Path("pattern14/{value}")
+        public String pattern14(@PathParam("value") String value) {
+            return value;
+        }
+
+        @GET
+        @Path("pattern15/{value}")
+        public String pattern15(@PathParam("value") String value) {
+            return value;
+        }
+    }
+
+    private static class NullTransport implements Transport {
+        @Override
+        public void sendText(String text, SendHandler handler) {
+            handler.onResult(new SendResult());
+        }
+
+        @Override
+        public void sendBinary(ByteBuffer binary, SendHandler handler) {
+            handler.onResult(new SendResult());
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+}
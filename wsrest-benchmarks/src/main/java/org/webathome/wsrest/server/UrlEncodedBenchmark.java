@@ -0,0 +1,128 @@
+package org.webathome.wsrest.server;
+
+import org.openjdk.jmh.annotations.*;
+
+import javax.websocket.SendHandler;
+import javax.websocket.SendResult;
+import javax.ws.rs.*;
+import javax.ws.rs.core.MediaType;
+import java.nio.ByteBuffer;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+// Form bodies are parsed when the endpoint executes a method that consumes them. The methods
+// only return one of their parameters, so the parsing is most of the work.
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class UrlEncodedBenchmark {
+    private ScheduledExecutorService scheduler;
+    private BufferedSession session;
+    private EndpointDescription endpoint;
+    private Request single;
+    private Request multiple;
+    private Request repeated;
+    private Request escaped;
+
+    @Setup
+    public void setup() throws Exception {
+        scheduler = Executors.newSingleThreadScheduledExecutor();
+        session = new BufferedSession(new NullTransport(), null, scheduler, new StreamRegistry(scheduler, 0));
+        endpoint = new EndpointDescription(FormService.class);
+
+        single = Request.parse("POST /form/single 1\nvalue=hello");
+        multiple = Request.parse("POST /form/multiple 2\na=1&b=2&c=3&d=4&e=5&f=6&g=7&h=8");
+        repeated = Request.parse("POST /form/repeated 3\nvalue=1&value=2&value=3&value=4&value=5&value=6&value=7&value=8");
+        escaped = Request.parse("POST /form/escaped 4\nname=J%C3%BCrgen+M%C3%BCller&path=%2Fusers%2F42%2Fposts&query=a%3D1%26b%3D2");
+    }
+
+    @TearDown
+    public void tearDown() {
+        scheduler.shutdownNow();
+    }
+
+    @Benchmark
+    public Response single() throws WsRestException {
+        return endpoint.execute(single, session);
+    }
+
+    @Benchmark
+    public Response multiple() throws WsRestException {
+        return endpoint.execute(multiple, session);
+    }
+
+    @Benchmark
+    public Response repeated() throws WsRestException {
+        return endpoint.execute(repeated, session);
+    }
+
+    @Benchmark
+    public Response escaped() throws WsRestException {
+        return endpoint.execute(escaped, session);
+    }
+
+    @Path("/form")
+    @Produces(MediaType.TEXT_PLAIN)
+    public static class FormService {
+        @POST
+        @Path("single")
+        public String single(
+            @FormParam("value") String value
+        ) {
+            return value;
+        }
+
+        @POST
+        @Path("multiple")
+        public String multiple(
+            @FormParam("a") String a,
+            @FormParam("b") String b,
+            @FormParam("c") String c,
+            @FormParam("d") String d,
+            @FormParam("e") String e,
+            @FormParam("f") String f,
+            @FormParam("g") String g,
+            @FormParam("h") String h
+        ) {
+            return h;
+        }
+
+        @POST
+        @Path("repeated")
+        public String repeated(
+            @FormParam("value") String[] value
+        ) {
+            return value[value.length - 1];
+        }
+
+        @POST
+        @Path("escaped")
+        public String escaped(
+            @FormParam("name") String name,
+            @FormParam("path") String path,
+            @FormParam("query") String query
+        ) {
+            return query;
+        }
+    }
+
+    private static class NullTransport implements Transport {
+        @Override
+        public void sendText(String text, SendHandler handler) {
+            handler.onResult(new SendResult());
+        }
+
+        @Override
+        public void sendBinary(ByteBuffer binary, SendHandler handler) {
+            handler.onResult(new SendResult());
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+}
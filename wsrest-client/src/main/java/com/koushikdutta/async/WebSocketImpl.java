@@ -1,21 +1,30 @@
 package com.koushikdutta.async;
 
 import com.koushikdutta.async.callback.CompletedCallback;
+import com.koushikdutta.async.callback.DataCallback;
 import com.koushikdutta.async.callback.WritableCallback;
 import com.koushikdutta.async.http.AsyncHttpClient;
 import com.koushikdutta.async.http.WebSocket;
+import org.webathome.wsrest.client.OutboundQueue;
 import org.webathome.wsrest.client.WebSocketCallback;
+import org.webathome.wsrest.client.WsRestException;
 
-import java.util.LinkedList;
+import java.nio.ByteBuffer;
 import java.util.concurrent.ThreadPoolExecutor;
 
 class WebSocketImpl implements org.webathome.wsrest.client.WebSocket {
     private final Object syncRoot = new Object();
     private final ThreadPoolExecutor threadPool;
-    private WebSocket session;
-    private final java.util.Deque<String> queue = new LinkedList<>();
+    private volatile WebSocket session;
     private final WebSocketCallback callback;
-    private boolean sending;
+    private boolean closed;
+
+    private final OutboundQueue outbound = new OutboundQueue() {
+        @Override
+        protected void write(Object frame) {
+            WebSocketImpl.this.write(frame);
+        }
+    };
 
     public WebSocketImpl(String url, WebSocketCallback callback, ThreadPoolExecutor threadPool) {
         if (url == null) {
@@ -45,7 +54,14 @@ class WebSocketImpl implements org.webathome.wsrest.client.WebSocket {
             return;
         }
 
-        this.session = webSocket;
+        synchronized (syncRoot) {
+            if (closed) {
+                webSocket.close();
+                return;
+            }
+
+            this.session = webSocket;
+        }
 
         this.session.setWriteableCallback(new WritableCallback() {
             @Override
@@ -67,6 +83,20 @@ class WebSocketImpl implements org.webathome.wsrest.client.WebSocket {
             }
         });
 
+        this.session.setDataCallback(new DataCallback() {
+            @Override
+            public void onDataAvailable(DataEmitter emitter, ByteBufferList bb) {
+                final ByteBuffer data = ByteBuffer.wrap(bb.getAllByteArray());
+
+                threadPool.submit(new Runnable() {
+                    @Override
+                    public void run() {
+                        callback.onBinaryAvailable(data);
+                    }
+                });
+            }
+        });
+
         this.session.setClosedCallback(new CompletedCallback() {
             @Override
             public void onCompleted(Exception e) {
@@ -74,21 +104,15 @@ class WebSocketImpl implements org.webathome.wsrest.client.WebSocket {
             }
         });
 
-        beginSend();
+        outbound.setReady();
+
+        callback.onOpen();
     }
 
     private void onWriteable() {
-        synchronized (syncRoot) {
-            if (queue.size() == 0) {
-                return;
-            }
-
-            sending = false;
+        // The socket has written out everything it buffered.
 
-            // Start a new run.
-
-            beginSend();
-        }
+        outbound.onWriteComplete();
     }
 
     @Override
@@ -97,29 +121,86 @@ class WebSocketImpl implements org.webathome.wsrest.client.WebSocket {
             throw new IllegalArgumentException("text");
         }
 
-        synchronized (syncRoot) {
-            queue.addLast(text);
+        offer(text);
+    }
 
-            beginSend();
+    @Override
+    public void sendBinary(ByteBuffer value) {
+        if (value == null) {
+            throw new IllegalArgumentException("value");
         }
+
+        offer(value);
     }
 
-    private void beginSend() {
-        if (session == null || sending || queue.size() == 0) {
-            return;
+    private void offer(Object frame) {
+        if (!outbound.offer(frame)) {
+            // The sender may be holding its own locks and be in the middle of changing its
+            // state, so the error is reported on another thread.
+
+            threadPool.submit(new Runnable() {
+                @Override
+                public void run() {
+                    callback.onError(new WsRestException("Too many frames waiting to be sent"));
+                }
+            });
+        }
+    }
+
+    @Override
+    public boolean isWritable() {
+        return outbound.isWritable();
+    }
+
+    private void write(Object frame) {
+        WebSocket session = this.session;
+
+        if (frame instanceof ByteBuffer) {
+            session.send(toByteArray((ByteBuffer)frame));
+        } else {
+            session.send((String)frame);
+        }
+
+        // When the socket had to buffer the frame, the write completes once onWriteable tells us
+        // the buffer has been flushed.
+
+        if (!session.isBuffering()) {
+            outbound.onWriteComplete();
+        }
+    }
+
+    private static byte[] toByteArray(ByteBuffer value) {
+        if (
+            value.hasArray() &&
+            value.arrayOffset() == 0 &&
+            value.position() == 0 &&
+            value.remaining() == value.array().length
+        ) {
+            return value.array();
         }
 
-        session.send(queue.removeFirst());
+        byte[] result = new byte[value.remaining()];
+        value.duplicate().get(result);
+        return result;
     }
 
     @Override
     public void close() {
-        synchronized (syncRoot) {
-            if (session != null) {
-                session.close();
+        WebSocket session;
 
-                session = null;
+        synchronized (syncRoot) {
+            if (closed) {
+                return;
             }
+
+            closed = true;
+            session = this.session;
+        }
+
+        outbound.close();
+
+        if (session != null) {
+            session.close();
         }
     }
 }
@@ -1,12 +1,85 @@
 package org.eclipse.jetty.websocket;
 
+import org.eclipse.jetty.io.ByteBufferPool;
+import org.eclipse.jetty.websocket.client.WebSocketClient;
 import org.webathome.wsrest.client.WebSocket;
 import org.webathome.wsrest.client.WebSocketCallback;
 import org.webathome.wsrest.client.WebSocketFactory;
 
+import java.util.concurrent.Executor;
+
 public class JettyWebSocketFactory implements WebSocketFactory {
+    private final Object syncRoot = new Object();
+    private final WebSocketClient client;
+    private final boolean ownsClient;
+    private boolean closed;
+
+    public JettyWebSocketFactory() {
+        this(null, null);
+    }
+
+    public JettyWebSocketFactory(Executor executor, ByteBufferPool bufferPool) {
+        client = new WebSocketClient();
+        ownsClient = true;
+
+        // The client is shared by all sockets and only stopped when the factory is closed,
+        // so it must not keep the process alive.
+
+        client.setDaemon(true);
+
+        if (executor != null) {
+            client.setExecutor(executor);
+        }
+        if (bufferPool != null) {
+            client.setBufferPool(bufferPool);
+        }
+    }
+
+    public JettyWebSocketFactory(WebSocketClient client) {
+        if (client == null) {
+            throw new IllegalArgumentException("client");
+        }
+
+        this.client = client;
+        ownsClient = false;
+    }
+
+    public WebSocketClient getClient() {
+        return client;
+    }
+
     @Override
     public WebSocket newInstance(String url, WebSocketCallback callback) throws Exception {
-        return new WebSocketImpl(url, callback);
+        synchronized (syncRoot) {
+            if (closed) {
+                throw new IllegalStateException("Factory has been closed");
+            }
+
+            if (!client.isStarted()) {
+                client.start();
+            }
+        }
+
+        return new WebSocketImpl(client, url, callback);
+    }
+
+    public void close() {
+        synchronized (syncRoot) {
+            if (closed) {
+                return;
+            }
+
+            closed = true;
+        }
+
+        // A client that was provided to us is owned by the caller.
+
+        if (ownsClient) {
+            try {
+                client.stop();
+            } catch (Exception e) {
+                // Ignore.
+            }
+        }
     }
 }
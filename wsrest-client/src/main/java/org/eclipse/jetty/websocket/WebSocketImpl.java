@@ -2,26 +2,50 @@ package org.eclipse.jetty.websocket;
 
 import org.eclipse.jetty.websocket.api.Session;
 import org.eclipse.jetty.websocket.api.StatusCode;
+import org.eclipse.jetty.websocket.api.WriteCallback;
 import org.eclipse.jetty.websocket.api.annotations.*;
 import org.eclipse.jetty.websocket.client.ClientUpgradeRequest;
 import org.eclipse.jetty.websocket.client.WebSocketClient;
-import org.eclipse.jetty.websocket.common.io.FutureWriteCallback;
+import org.webathome.wsrest.client.OutboundQueue;
 import org.webathome.wsrest.client.WebSocketCallback;
 import org.webathome.wsrest.client.WsRestException;
 
 import java.net.URI;
-import java.util.Deque;
-import java.util.LinkedList;
+import java.nio.ByteBuffer;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
 
 class WebSocketImpl implements org.webathome.wsrest.client.WebSocket {
     private final Object syncRoot = new Object();
     private final Socket socket;
-    private final Deque<String> queue = new LinkedList<>();
     private final WebSocketCallback callback;
-    private WebSocketClient client;
-    private boolean sending;
+    private final Future<Session> connectFuture;
+    private final Executor executor;
+    private boolean closed;
+
+    private final OutboundQueue outbound = new OutboundQueue() {
+        @Override
+        protected void write(Object frame) {
+            WebSocketImpl.this.write(frame);
+        }
+    };
+
+    private final WriteCallback writeCallback = new WriteCallback() {
+        @Override
+        public void writeFailed(Throwable cause) {
+            reportError(cause);
+        }
+
+        @Override
+        public void writeSuccess() {
+            outbound.onWriteComplete();
+        }
+    };
 
-    public WebSocketImpl(String url, WebSocketCallback callback) throws Exception {
+    public WebSocketImpl(WebSocketClient client, String url, WebSocketCallback callback) throws Exception {
+        if (client == null) {
+            throw new IllegalArgumentException("client");
+        }
         if (url == null) {
             throw new IllegalArgumentException("url");
         }
@@ -31,16 +55,15 @@ class WebSocketImpl implements org.webathome.wsrest.client.WebSocket {
 
         this.callback = callback;
 
-        client = new WebSocketClient();
-        client.start();
-
         socket = new Socket();
 
-        client.connect(
+        connectFuture = client.connect(
             socket,
             new URI(url),
             new ClientUpgradeRequest()
         );
+
+        executor = client.getExecutor();
     }
 
     @Override
@@ -49,63 +72,82 @@ class WebSocketImpl implements org.webathome.wsrest.client.WebSocket {
             throw new IllegalArgumentException("text");
         }
 
-        synchronized (syncRoot) {
-            queue.addLast(text);
+        offer(text);
+    }
 
-            beginSend();
+    @Override
+    public void sendBinary(ByteBuffer value) {
+        if (value == null) {
+            throw new IllegalArgumentException("value");
         }
+
+        offer(value);
     }
 
-    private void beginSend() {
-        if (socket.session == null || sending || queue.size() == 0) {
-            return;
+    private void offer(Object frame) {
+        if (!outbound.offer(frame)) {
+            reportError(new WsRestException("Too many frames waiting to be sent"));
         }
+    }
 
-        socket.session.getRemote().sendString(
-            queue.removeFirst(),
-            new FutureWriteCallback() {
-                @Override
-                public void writeFailed(Throwable cause) {
-                    callback.onError(cause);
-                }
+    private void reportError(final Throwable e) {
+        // Errors that come up while sending are reported on another thread. The sender may be
+        // holding its own locks and be in the middle of changing its state.
 
-                @Override
-                public void writeSuccess() {
-                    synchronized (syncRoot) {
-                        if (queue.size() == 0) {
-                            return;
-                        }
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                callback.onError(e);
+            }
+        });
+    }
 
-                        sending = false;
+    @Override
+    public boolean isWritable() {
+        return outbound.isWritable();
+    }
 
-                        // Start a new run.
+    private void write(Object frame) {
+        // Writes only start once the session is there.
 
-                        beginSend();
-                    }
-                }
-            }
-        );
+        Session session = socket.session;
+
+        if (frame instanceof ByteBuffer) {
+            session.getRemote().sendBytes((ByteBuffer)frame, writeCallback);
+        } else {
+            session.getRemote().sendString((String)frame, writeCallback);
+        }
     }
 
     @Override
     public void close() {
-        synchronized (syncRoot) {
-            if (client != null) {
-                try {
-                    client.stop();
-                } catch (Exception e) {
-                    // Ignore.
-                }
+        Session session;
 
-                client = null;
+        synchronized (syncRoot) {
+            if (closed) {
+                return;
             }
+
+            closed = true;
+            session = socket.session;
+        }
+
+        outbound.close();
+
+        // The client is shared with other sockets, so only this session is closed. This is done
+        // outside of the lock because closing may call back into onClose.
+
+        if (session != null) {
+            session.close();
+        } else {
+            connectFuture.cancel(true);
         }
     }
 
     @SuppressWarnings("UnusedDeclaration")
     @WebSocket
     public class Socket {
-        private Session session;
+        private volatile Session session;
 
         @OnWebSocketClose
         public void onClose(int statusCode, String reason) {
@@ -120,11 +162,23 @@ class WebSocketImpl implements org.webathome.wsrest.client.WebSocket {
 
         @OnWebSocketConnect
         public void onConnect(Session session) {
+            boolean closed;
+
             synchronized (syncRoot) {
                 this.session = session;
+                closed = WebSocketImpl.this.closed;
+            }
 
-                beginSend();
+            // We were closed while connecting.
+
+            if (closed) {
+                session.close();
+                return;
             }
+
+            outbound.setReady();
+
+            callback.onOpen();
         }
 
         @OnWebSocketMessage
@@ -132,6 +186,11 @@ class WebSocketImpl implements org.webathome.wsrest.client.WebSocket {
             callback.onStringAvailable(msg);
         }
 
+        @OnWebSocketMessage
+        public void onMessage(byte[] buffer, int offset, int length) {
+            callback.onBinaryAvailable(ByteBuffer.wrap(buffer, offset, length));
+        }
+
         @OnWebSocketError
         public void onError(Throwable e) {
             callback.onError(e);
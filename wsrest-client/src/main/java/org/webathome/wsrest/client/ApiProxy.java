@@ -0,0 +1,397 @@
+package org.webathome.wsrest.client;
+
+import com.google.gson.Gson;
+
+import javax.ws.rs.*;
+import javax.ws.rs.core.MediaType;
+import java.lang.annotation.Annotation;
+import java.lang.reflect.*;
+import java.util.HashMap;
+import java.util.Map;
+
+// Handles calls on a proxy created by Connection.createProxy. The annotations of every method are
+// read once, up front, so a call only has to encode its arguments into the prepared template.
+class ApiProxy implements InvocationHandler {
+    private static final Gson GSON = new Gson();
+
+    private final Connection connection;
+    private final Class<?> api;
+    private final Map<Method, MethodTemplate> templates;
+
+    public ApiProxy(Connection connection, Class<?> api) throws WsRestException {
+        if (!api.isInterface()) {
+            throw new WsRestException(String.format("%s is not an interface", api.getName()));
+        }
+
+        this.connection = connection;
+        this.api = api;
+
+        String path = "";
+        String produces = null;
+        String consumes = null;
+
+        for (Annotation annotation : api.getAnnotations()) {
+            Class<? extends Annotation> annotationType = annotation.annotationType();
+
+            if (annotationType == Path.class) {
+                path = ((Path)annotation).value();
+            } else if (annotationType == Produces.class) {
+                produces = getMediaType(((Produces)annotation).value());
+            } else if (annotationType == Consumes.class) {
+                consumes = getMediaType(((Consumes)annotation).value());
+            }
+        }
+
+        if (path.endsWith("/")) {
+            path = path.substring(0, path.length() - 1);
+        }
+
+        Map<Method, MethodTemplate> templates = new HashMap<>();
+
+        for (Method method : api.getMethods()) {
+            templates.put(method, new MethodTemplate(method, path, produces, consumes));
+        }
+
+        this.templates = templates;
+    }
+
+    private static String getMediaType(String[] values) throws WsRestException {
+        if (values.length != 1) {
+            throw new WsRestException("Cannot accept multiple Produces or Consumes mime types");
+        }
+
+        return values[0];
+    }
+
+    @Override
+    public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+        if (method.getDeclaringClass() == Object.class) {
+            switch (method.getName()) {
+                case "equals":
+                    return proxy == args[0];
+
+                case "hashCode":
+                    return System.identityHashCode(proxy);
+
+                default:
+                    return "Proxy for " + api.getName();
+            }
+        }
+
+        return templates.get(method).invoke(connection, args);
+    }
+
+    private enum ParameterSource {
+        PATH,
+        QUERY,
+        FORM,
+        BODY
+    }
+
+    private enum ResultType {
+        VOID,
+        TEXT,
+        VALUE,
+        JSON,
+        STREAM
+    }
+
+    private static class ParameterTemplate {
+        private final ParameterSource source;
+        private final String encodedName;
+        private final ParameterParser parser;
+
+        public ParameterTemplate(ParameterSource source, String name, ParameterParser parser) {
+            this.source = source;
+            this.encodedName = name != null ? Request.urlEncode(name) : null;
+            this.parser = parser;
+        }
+
+        public String[] encode(Object value) throws WsRestException {
+            if (value == null) {
+                return new String[0];
+            }
+
+            return Request.toStrings(parser.encode(value));
+        }
+    }
+
+    private static class MethodTemplate {
+        private final RequestType method;
+        private final PathTemplate path;
+        private final int[] pathParameters;
+        private final ParameterTemplate[] parameters;
+        private final ResultType resultType;
+        private final Type resultJavaType;
+        private final ParameterParser resultParser;
+        private final boolean async;
+
+        public MethodTemplate(Method method, String basePath, String produces, String consumes) throws WsRestException {
+            RequestType type = RequestType.GET; // Default
+            String path = null;
+
+            for (Annotation annotation : method.getAnnotations()) {
+                Class<? extends Annotation> annotationType = annotation.annotationType();
+
+                // GET, POST, PUT, DELETE and STREAM are all marked with HttpMethod, so this works
+                // with the STREAM annotation of the server or one declared by the client.
+
+                HttpMethod httpMethod = annotationType.getAnnotation(HttpMethod.class);
+
+                if (httpMethod != null) {
+                    type = getRequestType(httpMethod.value());
+                } else if (annotationType == Path.class) {
+                    path = ((Path)annotation).value();
+                } else if (annotationType == Produces.class) {
+                    produces = getMediaType(((Produces)annotation).value());
+                } else if (annotationType == Consumes.class) {
+                    consumes = getMediaType(((Consumes)annotation).value());
+                }
+            }
+
+            if (path == null) {
+                throw new WsRestException(String.format("Missing Path annotation on %s", method.getName()));
+            }
+
+            if (!path.startsWith("/")) {
+                path = "/" + path;
+            }
+
+            this.path = new PathTemplate(basePath + path);
+
+            this.method = type;
+
+            // Parameters.
+
+            Type[] parameterTypes = method.getGenericParameterTypes();
+            Annotation[][] parameterAnnotations = method.getParameterAnnotations();
+            Map<String, Integer> pathParameterIndexes = new HashMap<>();
+            boolean hadBody = false;
+
+            parameters = new ParameterTemplate[parameterTypes.length];
+
+            for (int i = 0; i < parameters.length; i++) {
+                ParameterSource source = null;
+                String name = null;
+
+                for (Annotation annotation : parameterAnnotations[i]) {
+                    Class<? extends Annotation> annotationType = annotation.annotationType();
+
+                    if (annotationType == QueryParam.class) {
+                        source = ParameterSource.QUERY;
+                        name = ((QueryParam)annotation).value();
+                    } else if (annotationType == FormParam.class) {
+                        source = ParameterSource.FORM;
+                        name = ((FormParam)annotation).value();
+                    } else if (annotationType == PathParam.class) {
+                        source = ParameterSource.PATH;
+                        name = ((PathParam)annotation).value();
+                    }
+                }
+
+                if (source == null) {
+                    throw new WsRestException(String.format(
+                        "Parameter %d of method %s must have a PathParam, QueryParam or FormParam annotation",
+                        i,
+                        method.getName()
+                    ));
+                }
+
+                // Like on the server, a form parameter of a method that consumes JSON is the body.
+
+                if (source == ParameterSource.FORM && MediaType.APPLICATION_JSON.equals(consumes)) {
+                    if (hadBody) {
+                        throw new WsRestException(String.format(
+                            "Cannot accept multiple %s form parameters for method %s",
+                            consumes,
+                            method.getName()
+                        ));
+                    }
+
+                    hadBody = true;
+
+                    parameters[i] = new ParameterTemplate(ParameterSource.BODY, null, null);
+                } else {
+                    parameters[i] = new ParameterTemplate(source, name, ParameterParser.valueParser(parameterTypes[i]));
+                }
+
+                if (source == ParameterSource.PATH) {
+                    pathParameterIndexes.put(name, i);
+                }
+            }
+
+            // Find the parameter that goes in every slot of the path.
+
+            pathParameters = new int[this.path.getParameterCount()];
+
+            for (int i = 0; i < pathParameters.length; i++) {
+                Integer index = pathParameterIndexes.get(this.path.getName(i));
+                if (index == null) {
+                    throw new WsRestException("Cannot find path parameter " + this.path.getName(i));
+                }
+
+                pathParameters[i] = index;
+            }
+
+            // The result. A ResponseFuture makes the call asynchronous.
+
+            Type resultJavaType = method.getGenericReturnType();
+            boolean async = false;
+
+            if (getRawType(resultJavaType) == ResponseFuture.class) {
+                async = true;
+
+                if (resultJavaType instanceof ParameterizedType) {
+                    resultJavaType = ((ParameterizedType)resultJavaType).getActualTypeArguments()[0];
+                } else {
+                    resultJavaType = String.class;
+                }
+            }
+
+            ParameterParser resultParser = null;
+
+            if (resultJavaType == Stream.class) {
+                if (type != RequestType.STREAM) {
+                    throw new WsRestException("Methods returning a Stream must specify the STREAM annotation");
+                }
+
+                resultType = ResultType.STREAM;
+            } else if (type == RequestType.STREAM) {
+                throw new WsRestException("Stream methods must return a Stream");
+            } else if (resultJavaType == Void.TYPE || resultJavaType == Void.class) {
+                resultType = ResultType.VOID;
+            } else if (MediaType.APPLICATION_JSON.equals(produces)) {
+                resultType = ResultType.JSON;
+            } else if (resultJavaType == String.class) {
+                resultType = ResultType.TEXT;
+            } else {
+                resultType = ResultType.VALUE;
+                resultParser = ParameterParser.valueParser(resultJavaType);
+            }
+
+            this.resultJavaType = resultJavaType;
+            this.resultParser = resultParser;
+            this.async = async;
+        }
+
+        private static RequestType getRequestType(String value) throws WsRestException {
+            switch (value) {
+                case "GET":
+                    return RequestType.GET;
+
+                case "POST":
+                    return RequestType.POST;
+
+                case "PUT":
+                    return RequestType.PUT;
+
+                case "DELETE":
+                    return RequestType.DELETE;
+
+                case "STREAM":
+                    return RequestType.STREAM;
+
+                default:
+                    throw new WsRestException(String.format("Unsupported HTTP method %s", value));
+            }
+        }
+
+        private static Class<?> getRawType(Type type) {
+            if (type instanceof ParameterizedType) {
+                type = ((ParameterizedType)type).getRawType();
+            }
+
+            return type instanceof Class<?> ? (Class<?>)type : null;
+        }
+
+        public Object invoke(Connection connection, Object[] args) throws WsRestException {
+            StringBuilder path = new StringBuilder(this.path.getPart(0));
+
+            for (int i = 0; i < pathParameters.length; i++) {
+                int index = pathParameters[i];
+
+                Request.appendPath(path, parameters[index].encode(args[index]));
+                path.append(this.path.getPart(i + 1));
+            }
+
+            StringBuilder queryString = null;
+            StringBuilder form = null;
+            String body = null;
+
+            for (int i = 0; i < parameters.length; i++) {
+                ParameterTemplate parameter = parameters[i];
+
+                switch (parameter.source) {
+                    case QUERY:
+                        if (queryString == null) {
+                            queryString = new StringBuilder();
+                        }
+                        Request.appendUrl(queryString, parameter.encodedName, parameter.encode(args[i]));
+                        break;
+
+                    case FORM:
+                        if (form == null) {
+                            form = new StringBuilder();
+                        }
+                        Request.appendUrl(form, parameter.encodedName, parameter.encode(args[i]));
+                        break;
+
+                    case BODY:
+                        body = args[i] != null ? GSON.toJson(args[i]) : "";
+                        break;
+                }
+            }
+
+            Request request = new Request(connection, method, path.toString(), queryString, form, body);
+
+            if (resultType == ResultType.STREAM) {
+                return async ? request.getStreamAsync() : request.getStream();
+            }
+
+            if (!async) {
+                return decode(request.getText());
+            }
+
+            final ResponseFuture<Object> future = new ResponseFuture<>();
+
+            try {
+                request.getText(new Callback<String>() {
+                    @Override
+                    public void call(String value, Throwable e) {
+                        Object result = null;
+
+                        if (e == null) {
+                            try {
+                                result = decode(value);
+                            } catch (WsRestException e1) {
+                                e = e1;
+                            }
+                        }
+
+                        future.call(result, e);
+                    }
+                });
+            } catch (WsRestException e) {
+                future.call(null, e);
+            }
+
+            return future;
+        }
+
+        private Object decode(String value) throws WsRestException {
+            switch (resultType) {
+                case TEXT:
+                    return value;
+
+                case VALUE:
+                    return resultParser.decode(value);
+
+                case JSON:
+                    return value != null ? Request.parseJson(value, resultJavaType) : null;
+
+                default:
+                    return null;
+            }
+        }
+    }
+}
@@ -1,25 +1,65 @@
 package org.webathome.wsrest.client;
 
+import com.google.gson.Gson;
+import com.google.gson.JsonParseException;
+import org.webathome.wsrest.common.ConcurrentLongHashMap;
+
+import java.lang.reflect.Proxy;
+import java.nio.ByteBuffer;
 import java.util.*;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
 
 public class Connection {
     private static final long DEFAULT_LONGER = 60 * 1000;
+    private static final long DEFAULT_TIMEOUT = 0;
+    static final int BINARY_HEADER_LENGTH = 8;
+    private static final Gson GSON = new Gson();
+    private static final Executor DIRECT_EXECUTOR = new Executor() {
+        @Override
+        public void execute(Runnable command) {
+            command.run();
+        }
+    };
 
     private final Object syncRoot = new Object();
     private final String url;
     private final long linger;
+    private final long timeout;
     private final WebSocketFactory webSocketFactory;
     private long nextId = 1;
     private WebSocket webSocket;
-    private final Map<Long, PendingRequest> pendingRequests = new HashMap<>();
-    private Timer timer;
+    private final ConcurrentLongHashMap<PendingRequest> pendingRequests = new ConcurrentLongHashMap<>();
+    private final ConcurrentLongHashMap<TimingWheel.Timeout> timeouts = new ConcurrentLongHashMap<>();
+    private volatile Executor executor = DIRECT_EXECUTOR;
+    private volatile ResponseCache responseCache;
+    private volatile SingleFlight singleFlight;
+    private int batchSize = 1;
+    private long batchDelay;
+    private final List<String> batch = new ArrayList<>();
+    private boolean batchScheduled;
+    private boolean lingering;
+    private long lingerDeadline;
+    private boolean lingerScheduled;
     private boolean closed;
+    private ReconnectPolicy reconnectPolicy;
+    private long socketGeneration;
+    private boolean open;
+    private boolean reconnecting;
+    private boolean losingConnection;
+    private int reconnectAttempt;
 
     public Connection(String url, WebSocketFactory webSocketFactory) {
         this(url, DEFAULT_LONGER, webSocketFactory);
     }
 
     public Connection(String url, long linger, WebSocketFactory webSocketFactory) {
+        this(url, linger, DEFAULT_TIMEOUT, webSocketFactory);
+    }
+
+    // Requests that haven't been answered within timeout milliseconds fail. A timeout of zero or
+    // less means requests never expire. Individual requests can override this.
+    public Connection(String url, long linger, long timeout, WebSocketFactory webSocketFactory) {
         if (url == null) {
             throw new IllegalArgumentException("url");
         }
@@ -29,11 +69,67 @@ public class Connection {
 
         this.url = url;
         this.linger = linger;
+        this.timeout = timeout;
         this.webSocketFactory = webSocketFactory;
     }
 
-    Object getSyncRoot() {
-        return syncRoot;
+    // Callbacks run on this executor. Responses and messages for a single request or stream
+    // are still handled one at a time and in order. By default callbacks run on the thread
+    // that received the response.
+    public void setExecutor(Executor executor) {
+        this.executor = executor != null ? executor : DIRECT_EXECUTOR;
+    }
+
+    // GET requests are served from the cache when the server said their response can be cached
+    // and it hasn't expired or been invalidated since.
+    public void setResponseCache(ResponseCache responseCache) {
+        this.responseCache = responseCache;
+    }
+
+    // When enabled, a GET request that's identical to one that's still in flight doesn't go to
+    // the server. It gets the response of the request in flight instead.
+    public void setSingleFlight(boolean enabled) {
+        synchronized (syncRoot) {
+            if (!enabled) {
+                singleFlight = null;
+            } else if (singleFlight == null) {
+                singleFlight = new SingleFlight();
+            }
+        }
+    }
+
+    // Outgoing frames are collected for up to maxDelay microseconds, or until maxMessages frames
+    // are waiting, and then sent to the server as a single frame. A maxMessages of one or less
+    // sends every frame right away.
+    public void setBatchPolicy(int maxMessages, long maxDelay) {
+        if (maxDelay < 0) {
+            throw new IllegalArgumentException("maxDelay");
+        }
+
+        synchronized (syncRoot) {
+            flushBatch();
+
+            batchSize = maxMessages;
+            batchDelay = maxDelay;
+        }
+    }
+
+    SingleFlight getSingleFlight() {
+        return singleFlight;
+    }
+
+    long getTimeout() {
+        return timeout;
+    }
+
+    // When set, a lost connection is reopened with a growing delay between attempts. Requests
+    // that didn't make it to the server, and GET, PUT and DELETE requests, are sent again once
+    // the connection is back. Other requests and open streams fail, and so does everything
+    // that's waiting once the policy runs out of attempts.
+    public void setReconnectPolicy(ReconnectPolicy reconnectPolicy) {
+        synchronized (syncRoot) {
+            this.reconnectPolicy = reconnectPolicy;
+        }
     }
 
     @SuppressWarnings("UnusedDeclaration")
@@ -54,88 +150,290 @@ public class Connection {
         return new Request(this, method, path);
     }
 
-    void execute(RequestType method, String path, String body, PendingRequest request) throws WsRestException {
+    // Prepares a request that's executed many times. Path parameters are taken from the
+    // {name} placeholders in the path.
+    public PreparedRequest prepareRequest(String path, RequestType method) throws WsRestException {
+        if (method == null) {
+            throw new IllegalArgumentException("method");
+        }
+        if (path == null) {
+            throw new IllegalArgumentException("path");
+        }
+
         synchronized (syncRoot) {
             if (closed) {
                 throw new WsRestException("Connection closed");
             }
+        }
+
+        return new PreparedRequest(this, method, path);
+    }
+
+    // Creates an implementation of an interface that's annotated like a JAX-RS endpoint. Every call
+    // on it is sent as a request on this connection. Methods returning a ResponseFuture run
+    // asynchronously.
+    @SuppressWarnings("unchecked")
+    public <T> T createProxy(Class<T> api) throws WsRestException {
+        if (api == null) {
+            throw new IllegalArgumentException("api");
+        }
+
+        return (T)Proxy.newProxyInstance(
+            api.getClassLoader(),
+            new Class<?>[]{api},
+            new ApiProxy(this, api)
+        );
+    }
+
+    // Number of requests and streams that are waiting for a response or are still open.
+    int getPendingCount() {
+        return pendingRequests.size();
+    }
+
+    // False while the socket has so many frames waiting to be sent that new requests are refused.
+    public boolean isWritable() {
+        synchronized (syncRoot) {
+            return webSocket == null || webSocket.isWritable();
+        }
+    }
+
+    // Executes the requests in parallel. The result has the responses in the order of the requests
+    // and fails as soon as one of the requests fails.
+    public ResponseFuture<List<String>> executeAll(Request... requests) {
+        if (requests == null) {
+            throw new IllegalArgumentException("requests");
+        }
+
+        List<ResponseFuture<String>> futures = new ArrayList<>(requests.length);
 
-            execute(method, path, body, request, nextId++);
+        for (Request request : requests) {
+            futures.add(request.getTextAsync());
         }
+
+        return ResponseFuture.all(futures);
     }
 
-    void execute(RequestType method, String path, String body, PendingRequest request, long id) throws WsRestException {
+    void execute(RequestType method, String path, String body, final PendingRequest request, long timeout) throws WsRestException {
+        ResponseCache responseCache = this.responseCache;
+        String cacheKey = null;
+
+        if (responseCache != null && method == RequestType.GET && request.isCacheable()) {
+            cacheKey = ResponseCache.createKey(method, path);
+
+            String cached = responseCache.get(cacheKey);
+            if (cached != null) {
+                executeCached(request, cached);
+                return;
+            }
+        }
+
         synchronized (syncRoot) {
             if (closed) {
                 throw new WsRestException("Connection closed");
             }
 
-            StringBuilder sb = new StringBuilder();
+            final long id = nextId++;
+            String frame = buildFrame(method, path, body, id);
 
-            sb
-                .append(method)
-                .append(' ')
-                .append(path)
-                .append(' ')
-                .append(id);
+            if (reconnecting) {
+                // The request waits for the connection to come back.
 
-            if (body != null) {
-                sb
-                    .append('\n')
-                    .append(body);
+                if (reconnectPolicy != null && pendingRequests.size() >= reconnectPolicy.getMaxQueued()) {
+                    throw new WsRestException("Too many requests waiting for the connection");
+                }
+            } else {
+                openWebSocket();
+
+                // Streams and control frames still go out, but new requests are pushed back while
+                // the socket can't keep up.
+
+                if (!webSocket.isWritable()) {
+                    throw new WsRestException("Too many frames waiting to be sent");
+                }
             }
 
-            if (webSocket == null) {
-                try {
-                    webSocket = webSocketFactory.newInstance(
-                        url,
-                        new WebSocketCallback() {
-                            @Override
-                            public void onClosed() {
-                                Connection.this.onClosed();
-                            }
-
-                            @Override
-                            public void onStringAvailable(String value) {
-                                Connection.this.onStringAvailable(value);
-                            }
-
-                            @Override
-                            public void onError(Throwable e) {
-                                Connection.this.onError(e);
-                            }
+            request.attach(id, new SerialExecutor(executor), method, reconnectPolicy != null || reconnecting ? frame : null);
+
+            if (cacheKey != null) {
+                request.setCache(responseCache, cacheKey);
+            }
+
+            pendingRequests.put(id, request);
+
+            if (timeout > 0) {
+                timeouts.put(id, Scheduler.newTimeout(
+                    new Runnable() {
+                        @Override
+                        public void run() {
+                            onTimeout(id, request);
                         }
-                    );
-                } catch (Exception e) {
-                    throw new WsRestException("Cannot create web socket", e);
+                    },
+                    timeout
+                ));
+            }
+
+            if (webSocket != null) {
+                updateLingerTimer();
+
+                sendText(frame);
+            }
+        }
+    }
+
+    private void executeCached(final PendingRequest request, final String body) throws WsRestException {
+        synchronized (syncRoot) {
+            if (closed) {
+                throw new WsRestException("Connection closed");
+            }
+
+            request.attach(nextId++, new SerialExecutor(executor), RequestType.GET, null);
+        }
+
+        // Cached responses are handled on the executor like any other response.
+
+        request.getExecutor().execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    request.handleRequest(ResponseType.OK, request.getId(), body);
+                } catch (WsRestException e) {
+                    request.handleError(e);
                 }
             }
+        });
+    }
 
-            if (request != null) {
-                pendingRequests.put(id, request);
+    void executeStream(RequestType method, String body, long id) throws WsRestException {
+        synchronized (syncRoot) {
+            if (closed) {
+                throw new WsRestException("Connection closed");
+            }
+            if (reconnecting) {
+                throw new WsRestException("Connection lost");
             }
 
-            // Connection will not be closed while there are pending requests.
+            openWebSocket();
 
-            if (pendingRequests.size() > 0) {
-                stopLingerTimer();
-            } else {
-                startLingerTimer();
+            updateLingerTimer();
+
+            sendText(buildFrame(method, "~", body, id));
+        }
+    }
+
+    static String buildFrame(RequestType method, String path, String body, long id) {
+        StringBuilder sb = new StringBuilder();
+
+        sb
+            .append(method)
+            .append(' ')
+            .append(path)
+            .append(' ')
+            .append(id);
+
+        if (body != null) {
+            sb
+                .append('\n')
+                .append(body);
+        }
+
+        return sb.toString();
+    }
+
+    void executeBinary(long id, ByteBuffer message) throws WsRestException {
+        synchronized (syncRoot) {
+            if (closed) {
+                throw new WsRestException("Connection closed");
+            }
+            if (reconnecting) {
+                throw new WsRestException("Connection lost");
             }
 
-            webSocket.sendText(sb.toString());
+            ByteBuffer frame = ByteBuffer.allocate(BINARY_HEADER_LENGTH + message.remaining());
+            frame.putLong(id);
+            frame.put(message.duplicate());
+            frame.flip();
+
+            openWebSocket();
+
+            updateLingerTimer();
+
+            // Binary frames can't go in a batch, so whatever is batched goes out first to keep
+            // the order.
+
+            flushBatch();
+
+            if (webSocket == null) {
+                throw new WsRestException("Connection lost");
+            }
+
+            webSocket.sendBinary(frame);
         }
     }
 
-    private void stopLingerTimer() {
-        if (timer != null) {
-            timer.cancel();
-            timer = null;
+    private void openWebSocket() throws WsRestException {
+        if (webSocket != null) {
+            return;
+        }
+
+        // Callbacks of sockets we've already let go of are ignored.
+
+        final long generation = ++socketGeneration;
+        open = false;
+
+        try {
+            webSocket = webSocketFactory.newInstance(
+                url,
+                new WebSocketCallback() {
+                    @Override
+                    public void onOpen() {
+                        Connection.this.onOpen(generation);
+                    }
+
+                    @Override
+                    public void onClosed() {
+                        Connection.this.onConnectionLost(generation, new WsRestException("Connection closed unexpectedly"));
+                    }
+
+                    @Override
+                    public void onStringAvailable(String value) {
+                        Connection.this.onStringAvailable(value);
+                    }
+
+                    @Override
+                    public void onBinaryAvailable(ByteBuffer value) {
+                        Connection.this.onBinaryAvailable(value);
+                    }
+
+                    @Override
+                    public void onError(Throwable e) {
+                        Connection.this.onConnectionLost(generation, e);
+                    }
+                }
+            );
+        } catch (Exception e) {
+            throw new WsRestException("Cannot create web socket", e);
+        }
+    }
+
+    private void updateLingerTimer() {
+        // Connection will not be closed while there are pending requests.
+
+        if (pendingRequests.size() > 0) {
+            stopLingerTimer();
+        } else {
+            startLingerTimer();
         }
     }
 
+    private void stopLingerTimer() {
+        // The scheduled check stays where it is and finds out we're no longer lingering.
+
+        lingering = false;
+    }
+
     private void startLingerTimer() {
-        // Reset the timer.
+        // Resetting the timer only moves the deadline. The scheduled check takes care of
+        // a deadline that has moved, so a busy connection doesn't reschedule on every request.
 
         stopLingerTimer();
 
@@ -143,152 +441,574 @@ public class Connection {
             return;
         }
         if (linger == 0) {
-            webSocket.close();
+            closeWebSocket();
             return;
         }
 
-        timer = new Timer(true);
-        timer.schedule(
-            new TimerTask() {
+        lingering = true;
+        lingerDeadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(linger);
+
+        if (!lingerScheduled) {
+            scheduleLingerCheck(linger);
+        }
+    }
+
+    private void scheduleLingerCheck(long delay) {
+        lingerScheduled = true;
+
+        Scheduler.schedule(
+            new Runnable() {
                 @Override
                 public void run() {
-                    webSocket.close();
+                    checkLinger();
                 }
             },
-            linger
+            delay
         );
     }
 
-    private void onClosed() {
-        List<PendingRequest> requests;
-
+    private void checkLinger() {
         synchronized (syncRoot) {
-            closeWebSocket();
+            lingerScheduled = false;
+
+            if (!lingering || this.webSocket == null) {
+                return;
+            }
+
+            long remaining = lingerDeadline - System.nanoTime();
+            if (remaining > 0) {
+                scheduleLingerCheck(TimeUnit.NANOSECONDS.toMillis(remaining) + 1);
+                return;
+            }
 
-            requests = new ArrayList<>(pendingRequests.values());
-            pendingRequests.clear();
+            closeWebSocket();
         }
+    }
+
+    private void onTimeout(final long id, final PendingRequest request) {
+        // Expiring goes through the executor of the request, so it can't cross a response
+        // that's being handled.
+
+        final Runnable expire = new Runnable() {
+            @Override
+            public void run() {
+                if (timeouts.remove(id) == null || !pendingRequests.remove(id, request)) {
+                    return;
+                }
 
-        WsRestException e = null;
+                synchronized (syncRoot) {
+                    if (webSocket != null) {
+                        // Let the server know it can stop working on the request.
+
+                        sendText(buildFrame(RequestType.CANCEL, "~", null, id));
+
+                        updateLingerTimer();
+                    }
+                }
+
+                request.handleError(new WsRestException("Request timed out"));
+            }
+        };
 
-        for (PendingRequest request : requests) {
-            if (e == null) {
-                e = new WsRestException("Connection closed unexpectedly");
+        executeTimerTask(new Runnable() {
+            @Override
+            public void run() {
+                request.getExecutor().execute(expire);
             }
-            request.handleError(e);
+        });
+    }
+
+    // Runs work that was started by a timer and may call into the application. Without an
+    // executor of the application, that work would otherwise run on the scheduler thread that
+    // all connections share.
+    void executeTimerTask(Runnable task) {
+        Executor executor = this.executor;
+
+        if (executor == DIRECT_EXECUTOR) {
+            executor = Scheduler.getCallbackExecutor();
         }
+
+        executor.execute(task);
     }
 
-    private void onStringAvailable(String value) {
+    private void cancelTimeout(long id) {
+        TimingWheel.Timeout timeout = timeouts.remove(id);
+        if (timeout != null) {
+            timeout.cancel();
+        }
+    }
+
+    private void onUnknownRequest(ResponseType response, long id) {
         synchronized (syncRoot) {
-            String header;
-            String body;
+            // Responses can still come in for requests that have timed out, and window updates can
+            // cross a close of the stream. Only IDs we never handed out are an error.
 
-            int pos = value.indexOf('\n');
+            if (id > 0 && id < nextId) {
+                if (response == ResponseType.OPEN && webSocket != null) {
+                    // The server opened a stream we've given up on, so close it again.
 
-            if (pos == -1) {
-                header = value;
-                body = null;
-            } else {
-                header = value.substring(0, pos);
-                body = value.substring(pos + 1);
+                    sendText(buildFrame(RequestType.CLOSE, "~", null, id));
+                }
+                return;
             }
+        }
 
-            String[] parts = header.split(" ");
-            if (parts.length != 2) {
-                onError(new WsRestException("Protocol error"));
-                return;
+        // The error is reported outside the lock, because it calls back into the requests.
+
+        onError(new WsRestException("Unknown stream ID"));
+    }
+
+    private void onOpen(long generation) {
+        synchronized (syncRoot) {
+            if (generation == socketGeneration) {
+                open = true;
+                reconnectAttempt = 0;
             }
+        }
+    }
+
+    private void onStringAvailable(String value) {
+        // Frames are parsed without taking the lock. Only the lookup of the request touches
+        // shared state, and that's a concurrent map.
 
-            ResponseType response;
-            long id;
+        String header;
+        String body;
+
+        int pos = value.indexOf('\n');
+
+        if (pos == -1) {
+            header = value;
+            body = null;
+        } else {
+            header = value.substring(0, pos);
+            body = value.substring(pos + 1);
+        }
+
+        int idStart = header.indexOf(' ') + 1;
+        if (idStart == 0) {
+            onError(new WsRestException("Protocol error"));
+            return;
+        }
+
+        int idEnd = header.indexOf(' ', idStart);
+        String argument = null;
+        if (idEnd == -1) {
+            idEnd = header.length();
+        } else {
+            argument = header.substring(idEnd + 1);
+        }
+
+        ResponseType response;
+        long id;
+        try {
+            response = ResponseType.valueOf(header.substring(0, idStart - 1));
+        } catch (IllegalArgumentException e) {
+            onError(new WsRestException("Protocol error", e));
+            return;
+        }
+        try {
+            id = Long.parseLong(header.substring(idStart, idEnd));
+        } catch (NumberFormatException e) {
+            onError(new WsRestException("Protocol error", e));
+            return;
+        }
+
+        if (response == ResponseType.INVALIDATE) {
+            ResponseCache responseCache = this.responseCache;
+            if (responseCache != null && body != null) {
+                responseCache.invalidate(body);
+            }
+            return;
+        }
+
+        // Cacheable responses carry their max age in the header, and batched stream messages
+        // the number of messages.
+
+        long maxAge = -1;
+        String[] messages = null;
+        if (argument != null && response == ResponseType.OK) {
             try {
-                response = ResponseType.valueOf(parts[0]);
-            } catch (IllegalArgumentException e) {
+                maxAge = Long.parseLong(argument);
+            } catch (NumberFormatException e) {
                 onError(new WsRestException("Protocol error", e));
                 return;
             }
+        } else if (argument != null) {
             try {
-                id = Long.parseLong(parts[1]);
-            } catch (NumberFormatException e) {
+                messages = GSON.fromJson(body, String[].class);
+            } catch (JsonParseException e) {
                 onError(new WsRestException("Protocol error", e));
                 return;
             }
 
-            if (response == ResponseType.ERROR) {
-                PendingRequest request = pendingRequests.remove(id);
+            if (
+                response != ResponseType.MESSAGE ||
+                messages == null ||
+                !String.valueOf(messages.length).equals(argument)
+            ) {
+                onError(new WsRestException("Protocol error"));
+                return;
+            }
+        }
 
-                if (request == null) {
-                    onError(new WsRestException("Unknown stream ID"));
-                    return;
+        dispatch(response, id, body, messages, null, maxAge);
+    }
+
+    private void onBinaryAvailable(ByteBuffer value) {
+        if (value.remaining() < BINARY_HEADER_LENGTH) {
+            onError(new WsRestException("Protocol error"));
+            return;
+        }
+
+        long id = value.getLong();
+
+        dispatch(ResponseType.MESSAGE, id, null, null, value.slice(), -1);
+    }
+
+    private void dispatch(final ResponseType response, final long id, final String body, final String[] messages, final ByteBuffer binary, final long maxAge) {
+        final PendingRequest request = pendingRequests.get(id);
+
+        if (request == null) {
+            onUnknownRequest(response, id);
+            return;
+        }
+
+        request.getExecutor().execute(new Runnable() {
+            @Override
+            public void run() {
+                handleResponse(request, response, id, body, messages, binary, maxAge);
+            }
+        });
+    }
+
+    private void handleResponse(PendingRequest request, ResponseType response, long id, String body, String[] messages, ByteBuffer binary, long maxAge) {
+        // The request may have timed out or failed while this response was waiting.
+
+        if (pendingRequests.get(id) != request) {
+            return;
+        }
+
+        cancelTimeout(id);
+
+        if (response == ResponseType.ERROR) {
+            pendingRequests.remove(id, request);
+
+            String message = "Server error";
+            if (body != null) {
+                message += "\n" + body;
+            }
+
+            request.handleError(new WsRestException(message));
+        } else {
+            // The response is cached before the caller hears about it, so a request made from the
+            // callback, or right after a synchronous call, finds it.
+
+            if (response == ResponseType.OK) {
+                request.cacheResponse(body, maxAge);
+            }
+
+            StreamState state;
+            try {
+                if (binary != null) {
+                    request.handleBinary(binary);
+                    state = StreamState.PENDING;
+                } else if (messages != null) {
+                    state = StreamState.PENDING;
+
+                    for (String message : messages) {
+                        state = request.handleRequest(response, id, message);
+                    }
+                } else {
+                    state = request.handleRequest(response, id, body);
                 }
+            } catch (WsRestException e) {
+                onError(e);
+                return;
+            }
+
+            if (state == StreamState.CLOSED) {
+                pendingRequests.remove(id, request);
+            }
+        }
 
-                String message = "Server error";
-                if (body != null) {
-                    message += "\n" + body;
+        if (pendingRequests.isEmpty()) {
+            synchronized (syncRoot) {
+                if (webSocket != null && pendingRequests.isEmpty()) {
+                    startLingerTimer();
                 }
+            }
+        }
+    }
 
-                request.handleError(new WsRestException(message));
-            } else {
-                PendingRequest request = pendingRequests.get(id);
+    private void onError(Throwable e) {
+        onConnectionLost(-1, e);
+    }
 
-                if (request == null) {
-                    onError(new WsRestException("Unknown stream ID"));
-                    return;
+    // A generation of -1 means the current socket.
+    private void onConnectionLost(long generation, final Throwable e) {
+        List<PendingRequest> requests = new ArrayList<>();
+
+        synchronized (syncRoot) {
+            // Closing the socket can report another error for the same socket, which is already
+            // being handled.
+
+            if (losingConnection || (generation != -1 && generation != socketGeneration)) {
+                return;
+            }
+
+            losingConnection = true;
+
+            try {
+                boolean wasOpen = open;
+                boolean reconnect = reconnectPolicy != null && !closed && reconnectPolicy.canAttempt(reconnectAttempt);
+
+                if (!reconnect) {
+                    // A request made after giving up starts over with a fresh set of attempts.
+
+                    reconnectAttempt = 0;
                 }
 
-                StreamState state;
-                try {
-                    state = request.handleRequest(response, id, body);
-                } catch (WsRestException e) {
-                    onError(e);
+                closeWebSocket();
+
+                for (PendingRequest request : pendingRequests.values()) {
+                    // Requests that can be retried stay pending and are sent again after reconnecting.
+                    // When the socket never opened, none of the requests reached the server.
+
+                    if (reconnect && request.canRetry(wasOpen)) {
+                        continue;
+                    }
+
+                    pendingRequests.remove(request.getId(), request);
+                    cancelTimeout(request.getId());
+
+                    requests.add(request);
+                }
+
+                if (reconnect && !pendingRequests.isEmpty()) {
+                    scheduleReconnect();
+                }
+            } finally {
+                losingConnection = false;
+            }
+        }
+
+        failRequests(requests, e);
+    }
+
+    private void failRequests(List<PendingRequest> requests, final Throwable e) {
+        for (final PendingRequest request : requests) {
+            request.getExecutor().execute(new Runnable() {
+                @Override
+                public void run() {
+                    request.handleError(e);
+                }
+            });
+        }
+    }
+
+    private void scheduleReconnect() {
+        if (reconnecting) {
+            return;
+        }
+
+        reconnecting = true;
+
+        Scheduler.schedule(
+            new Runnable() {
+                @Override
+                public void run() {
+                    executeTimerTask(new Runnable() {
+                        @Override
+                        public void run() {
+                            reconnect();
+                        }
+                    });
+                }
+            },
+            reconnectPolicy.getDelay(reconnectAttempt++)
+        );
+    }
+
+    private void reconnect() {
+        List<PendingRequest> requests;
+        final long generation;
+        WsRestException error = null;
+
+        synchronized (syncRoot) {
+            reconnecting = false;
+
+            if (closed || webSocket != null || pendingRequests.isEmpty()) {
+                return;
+            }
+
+            try {
+                openWebSocket();
+            } catch (WsRestException e) {
+                if (reconnectPolicy != null && reconnectPolicy.canAttempt(reconnectAttempt)) {
+                    scheduleReconnect();
                     return;
                 }
 
-                if (state == StreamState.CLOSED) {
-                    pendingRequests.remove(id);
+                error = e;
+            }
+
+            requests = pendingRequests.values();
+            generation = socketGeneration;
+
+            if (error != null) {
+                // The policy has run out of attempts, so the waiting requests fail.
+
+                for (PendingRequest request : requests) {
+                    pendingRequests.remove(request.getId(), request);
+                    cancelTimeout(request.getId());
                 }
+
+                reconnectAttempt = 0;
             }
+        }
+
+        if (error != null) {
+            failRequests(requests, error);
+            return;
+        }
 
-            if (pendingRequests.size() == 0) {
-                startLingerTimer();
+        // Send the requests again in the order they were made. This goes through the executor
+        // of the request, so anything that came in on the old connection has been handled first.
+        // The executor can run callbacks of the request, so this happens outside the lock.
+
+        Collections.sort(requests, new Comparator<PendingRequest>() {
+            @Override
+            public int compare(PendingRequest a, PendingRequest b) {
+                return Long.compare(a.getId(), b.getId());
             }
+        });
+
+        for (final PendingRequest request : requests) {
+            request.getExecutor().execute(new Runnable() {
+                @Override
+                public void run() {
+                    retry(generation, request);
+                }
+            });
         }
     }
 
-    private void onError(Throwable e) {
-        List<PendingRequest> requests;
+    private void retry(long generation, PendingRequest request) {
+        synchronized (syncRoot) {
+            if (generation != socketGeneration || pendingRequests.get(request.getId()) != request) {
+                return;
+            }
+
+            sendText(request.getRetryFrame());
+        }
+    }
+
+    private void sendText(String frame) {
+        if (batchSize <= 1) {
+            webSocket.sendText(frame);
+            return;
+        }
 
+        batch.add(frame);
+
+        if (batch.size() >= batchSize) {
+            flushBatch();
+        } else if (!batchScheduled) {
+            batchScheduled = true;
+
+            final long generation = socketGeneration;
+
+            Scheduler.schedule(
+                new Runnable() {
+                    @Override
+                    public void run() {
+                        onBatchTimeout(generation);
+                    }
+                },
+                batchDelay,
+                TimeUnit.MICROSECONDS
+            );
+        }
+    }
+
+    private void onBatchTimeout(long generation) {
         synchronized (syncRoot) {
-            closeWebSocket();
+            batchScheduled = false;
 
-            requests = new ArrayList<>(pendingRequests.values());
-            pendingRequests.clear();
+            if (generation == socketGeneration) {
+                flushBatch();
+            }
         }
+    }
+
+    private void flushBatch() {
+        if (batch.isEmpty() || webSocket == null) {
+            return;
+        }
+
+        // The batch is cleared before it's sent, so a send that fails and closes the socket
+        // doesn't see the same frames again.
+
+        String frame = takeBatch();
 
-        for (PendingRequest request : requests) {
-            request.handleError(e);
+        webSocket.sendText(frame);
+    }
+
+    private String takeBatch() {
+        // A batch goes out as a BATCH frame with the number of frames in the header and the
+        // frames as a JSON array in the body.
+
+        String frame;
+        if (batch.size() == 1) {
+            frame = batch.get(0);
+        } else {
+            frame = buildFrame(RequestType.BATCH, "~", GSON.toJson(batch), batch.size());
         }
+
+        batch.clear();
+
+        return frame;
     }
 
     private void closeWebSocket() {
-        if (webSocket != null) {
-            webSocket.close();
+        WebSocket webSocket = this.webSocket;
+        String frame = null;
+
+        if (webSocket != null && !batch.isEmpty()) {
+            frame = takeBatch();
         }
 
-        webSocket = null;
+        // The socket is detached before the last batch goes out, so errors reported while
+        // sending it belong to a previous generation and are ignored.
+
+        this.webSocket = null;
+        socketGeneration++;
+        open = false;
+
+        batch.clear();
+        batchScheduled = false;
 
         stopLingerTimer();
+
+        if (webSocket != null) {
+            if (frame != null) {
+                webSocket.sendText(frame);
+            }
+
+            webSocket.close();
+        }
     }
 
     public void close() {
         synchronized (syncRoot) {
-            if (!closed) {
-                closeWebSocket();
-
-                closed = true;
+            if (closed) {
+                return;
             }
+
+            closed = true;
         }
+
+        onConnectionLost(-1, new WsRestException("Connection closed"));
     }
 
     public void removeRequest(PendingStreamRequest request) {
@@ -296,6 +1016,6 @@ public class Connection {
             throw new IllegalArgumentException("request");
         }
 
-        this.pendingRequests.remove(request.getId());
+        pendingRequests.remove(request.getId(), request);
     }
 }
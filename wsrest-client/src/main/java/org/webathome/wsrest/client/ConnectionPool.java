@@ -0,0 +1,87 @@
+package org.webathome.wsrest.client;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// Spreads requests over a number of connections to the same URL. Every request goes to
+// the connection with the fewest requests in flight. A stream stays on the connection
+// it was opened on.
+public class ConnectionPool {
+    private final Connection[] connections;
+    private final AtomicInteger next = new AtomicInteger();
+
+    public ConnectionPool(String url, int size, WebSocketFactory webSocketFactory) {
+        if (size <= 0) {
+            throw new IllegalArgumentException("size");
+        }
+
+        connections = new Connection[size];
+
+        for (int i = 0; i < size; i++) {
+            connections[i] = new Connection(url, webSocketFactory);
+        }
+    }
+
+    public ConnectionPool(String url, int size, long linger, long timeout, WebSocketFactory webSocketFactory) {
+        if (size <= 0) {
+            throw new IllegalArgumentException("size");
+        }
+
+        connections = new Connection[size];
+
+        for (int i = 0; i < size; i++) {
+            connections[i] = new Connection(url, linger, timeout, webSocketFactory);
+        }
+    }
+
+    public int getSize() {
+        return connections.length;
+    }
+
+    public void setExecutor(Executor executor) {
+        for (Connection connection : connections) {
+            connection.setExecutor(executor);
+        }
+    }
+
+    // The connections share the cache.
+    public void setResponseCache(ResponseCache responseCache) {
+        for (Connection connection : connections) {
+            connection.setResponseCache(responseCache);
+        }
+    }
+
+    public Request newRequest(String path, RequestType method) throws WsRestException {
+        return getConnection().newRequest(path, method);
+    }
+
+    public Connection getConnection() {
+        // Start at a different connection every time so ties don't all go to the first one.
+
+        int start = (next.getAndIncrement() & Integer.MAX_VALUE) % connections.length;
+        Connection result = null;
+        int lowest = Integer.MAX_VALUE;
+
+        for (int i = 0; i < connections.length; i++) {
+            Connection connection = connections[(start + i) % connections.length];
+            int pending = connection.getPendingCount();
+
+            if (pending < lowest) {
+                result = connection;
+                lowest = pending;
+
+                if (pending == 0) {
+                    break;
+                }
+            }
+        }
+
+        return result;
+    }
+
+    public void close() {
+        for (Connection connection : connections) {
+            connection.close();
+        }
+    }
+}
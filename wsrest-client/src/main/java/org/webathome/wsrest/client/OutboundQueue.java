@@ -0,0 +1,119 @@
+package org.webathome.wsrest.client;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// Frames waiting to be written to a web socket. Only one write is in flight at a time; the next
+// one starts when the socket reports the previous one complete. Adding frames doesn't take a lock.
+public abstract class OutboundQueue {
+    public static final int DEFAULT_CAPACITY = 1024;
+
+    private final Queue<Object> queue = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger size = new AtomicInteger();
+    private final AtomicBoolean inFlight = new AtomicBoolean();
+    private final ThreadLocal<Boolean> draining = new ThreadLocal<>();
+    private final int capacity;
+    private volatile boolean ready;
+    private volatile boolean closed;
+
+    protected OutboundQueue() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    protected OutboundQueue(int capacity) {
+        if (capacity < 2) {
+            throw new IllegalArgumentException("capacity");
+        }
+
+        this.capacity = capacity;
+    }
+
+    // Starts the write of a frame. The subclass calls onWriteComplete once it's done, which may
+    // be before this method returns.
+    protected abstract void write(Object frame);
+
+    // Returns false when the queue is full. Frames offered after the queue was closed are dropped.
+    public boolean offer(Object frame) {
+        if (frame == null) {
+            throw new IllegalArgumentException("frame");
+        }
+
+        if (closed) {
+            return true;
+        }
+
+        while (true) {
+            int current = size.get();
+            if (current >= capacity) {
+                return false;
+            }
+            if (size.compareAndSet(current, current + 1)) {
+                break;
+            }
+        }
+
+        queue.add(frame);
+
+        drain();
+
+        return true;
+    }
+
+    // Producers should hold off while the queue is half full or more, so the remaining room is
+    // left for control frames.
+    public boolean isWritable() {
+        return size.get() < capacity / 2;
+    }
+
+    public int size() {
+        return size.get();
+    }
+
+    // Frames are held until the socket has connected.
+    public void setReady() {
+        ready = true;
+
+        drain();
+    }
+
+    public void onWriteComplete() {
+        inFlight.set(false);
+
+        drain();
+    }
+
+    public void close() {
+        closed = true;
+
+        queue.clear();
+    }
+
+    private void drain() {
+        // A write that completes on the thread that started it is picked up by the loop below,
+        // instead of recursing for every frame.
+
+        if (draining.get() != null) {
+            return;
+        }
+
+        draining.set(Boolean.TRUE);
+
+        try {
+            while (ready && !closed && !queue.isEmpty() && inFlight.compareAndSet(false, true)) {
+                Object frame = queue.poll();
+                if (frame == null) {
+                    inFlight.set(false);
+                    continue;
+                }
+
+                size.decrementAndGet();
+
+                write(frame);
+            }
+        } finally {
+            draining.remove();
+        }
+    }
+}
@@ -6,74 +6,159 @@ import java.lang.reflect.Type;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 public abstract class ParameterParser {
+    // Parsers are built once per type. Item parsers are keyed by class and hold the built in
+    // types, enums we've seen and registered codecs.
+
+    private static final ConcurrentMap<Type, ParameterParser> PARSERS = new ConcurrentHashMap<>();
+    private static final ConcurrentMap<Class<?>, ItemParser> ITEM_PARSERS = new ConcurrentHashMap<>();
+    private static final ItemParser DYNAMIC_ITEM_PARSER = new DynamicItemParser();
+
+    // Changes to the codecs are counted, so a parser that was built while the codecs changed
+    // isn't cached.
+
+    private static final Object CODECS_SYNC_ROOT = new Object();
+    private static volatile int codecsVersion;
+
+    static {
+        ITEM_PARSERS.put(Character.TYPE, new CharacterParser(false));
+        ITEM_PARSERS.put(Character.class, new CharacterParser(true));
+        ITEM_PARSERS.put(Short.TYPE, new ShortParser(false));
+        ITEM_PARSERS.put(Short.class, new ShortParser(true));
+        ITEM_PARSERS.put(Integer.TYPE, new IntegerParser(false));
+        ITEM_PARSERS.put(Integer.class, new IntegerParser(true));
+        ITEM_PARSERS.put(Long.TYPE, new LongParser(false));
+        ITEM_PARSERS.put(Long.class, new LongParser(true));
+        ITEM_PARSERS.put(Boolean.TYPE, new BooleanParser(false));
+        ITEM_PARSERS.put(Boolean.class, new BooleanParser(true));
+        ITEM_PARSERS.put(Float.TYPE, new FloatParser(false));
+        ITEM_PARSERS.put(Float.class, new FloatParser(true));
+        ITEM_PARSERS.put(Double.TYPE, new DoubleParser(false));
+        ITEM_PARSERS.put(Double.class, new DoubleParser(true));
+        ITEM_PARSERS.put(String.class, new StringParser());
+    }
+
     public static ParameterParser valueParser(Type type) throws WsRestException {
-        Class<?> klass = null;
-        if (type instanceof Class<?>) {
-            klass = (Class<?>)type;
+        if (type == null) {
+            throw new IllegalArgumentException("type");
         }
 
-        Class<?> itemType = klass;
+        ParameterParser parser = PARSERS.get(type);
 
-        if (klass != null && klass.isArray()) {
-            itemType = klass.getComponentType();
-        } else if (type instanceof ParameterizedType) {
-            Type[] typeArguments = ((ParameterizedType)type).getActualTypeArguments();
+        while (parser == null) {
+            int version = codecsVersion;
 
-            if (typeArguments != null && typeArguments.length == 1) {
-                itemType = typeArguments[0].getClass();
-            } else {
+            ParameterParser created = createValueParser(type);
+
+            synchronized (CODECS_SYNC_ROOT) {
+                if (version == codecsVersion) {
+                    parser = PARSERS.putIfAbsent(type, created);
+                    if (parser == null) {
+                        parser = created;
+                    }
+                }
+            }
+        }
+
+        return parser;
+    }
+
+    // Values of the type are encoded and decoded by the codec, also when they appear in an array
+    // or list.
+    public static <T> void registerCodec(Class<T> type, Codec<T> codec) {
+        if (type == null) {
+            throw new IllegalArgumentException("type");
+        }
+        if (codec == null) {
+            throw new IllegalArgumentException("codec");
+        }
+
+        synchronized (CODECS_SYNC_ROOT) {
+            ITEM_PARSERS.put(type, new CodecParser<>(codec));
+
+            // Parsers that were built before may have resolved the type differently.
+
+            codecsVersion++;
+            PARSERS.clear();
+        }
+    }
+
+    public static void unregisterCodec(Class<?> type) {
+        if (type == null) {
+            throw new IllegalArgumentException("type");
+        }
+
+        synchronized (CODECS_SYNC_ROOT) {
+            ItemParser itemParser = ITEM_PARSERS.get(type);
+
+            if (itemParser instanceof CodecParser) {
+                ITEM_PARSERS.remove(type, itemParser);
+
+                codecsVersion++;
+                PARSERS.clear();
+            }
+        }
+    }
+
+    private static ParameterParser createValueParser(Type type) throws WsRestException {
+        if (type instanceof ParameterizedType) {
+            ParameterizedType parameterizedType = (ParameterizedType)type;
+            Type rawType = parameterizedType.getRawType();
+
+            if (rawType != ArrayList.class && rawType != List.class && rawType != Collection.class) {
+                throw new WsRestException(String.format("Cannot parse %s", type));
+            }
+
+            Type[] typeArguments = parameterizedType.getActualTypeArguments();
+
+            if (typeArguments.length != 1 || !(typeArguments[0] instanceof Class<?>)) {
                 throw new WsRestException("Cannot determine parameter type");
             }
+
+            return new ArrayListParser(itemParser((Class<?>)typeArguments[0]));
         }
 
-        ItemParser itemParser;
-
-        if (itemType.isEnum()) {
-            itemParser = new EnumParser((Class<? extends Enum>)itemType);
-        } else if (itemType == Character.TYPE) {
-            itemParser = new CharacterParser(false);
-        } else if (itemType == Character.class) {
-            itemParser = new CharacterParser(true);
-        } else if (itemType == Short.TYPE) {
-            itemParser = new ShortParser(false);
-        } else if (itemType == Short.class) {
-            itemParser = new ShortParser(true);
-        } else if (itemType == Integer.TYPE) {
-            itemParser = new IntegerParser(false);
-        } else if (itemType == Integer.class) {
-            itemParser = new IntegerParser(true);
-        } else if (itemType == Long.TYPE) {
-            itemParser = new LongParser(false);
-        } else if (itemType == Long.class) {
-            itemParser = new LongParser(true);
-        } else if (itemType == Boolean.TYPE) {
-            itemParser = new BooleanParser(false);
-        } else if (itemType == Boolean.class) {
-            itemParser = new BooleanParser(true);
-        } else if (itemType == Float.TYPE) {
-            itemParser = new FloatParser(false);
-        } else if (itemType == Float.class) {
-            itemParser = new FloatParser(true);
-        } else if (itemType == Double.TYPE) {
-            itemParser = new DoubleParser(false);
-        } else if (itemType == Double.class) {
-            itemParser = new DoubleParser(true);
-        } else if (itemType == String.class) {
-            itemParser = new StringParser();
-        } else {
-            throw new WsRestException(String.format("Cannot parse %s", itemType.getName()));
-        }
-
-        if (klass != null && klass.isArray()) {
-            return new ArrayParser(itemParser, itemType);
-        }
-        if (type == ArrayList.class || type == List.class || type == Collection.class) {
-            return new ArrayListParser(itemParser);
-        }
-
-        return new SingleItemParser(itemParser);
+        if (!(type instanceof Class<?>)) {
+            throw new WsRestException(String.format("Cannot parse %s", type));
+        }
+
+        Class<?> klass = (Class<?>)type;
+
+        if (klass.isArray()) {
+            return new ArrayParser(itemParser(klass.getComponentType()), klass.getComponentType());
+        }
+
+        // Without a type argument, which is what we get from the class of a value, the items of a
+        // collection are encoded by their own class and decoded as strings.
+
+        if (Collection.class.isAssignableFrom(klass) && ITEM_PARSERS.get(klass) == null) {
+            return new ArrayListParser(DYNAMIC_ITEM_PARSER);
+        }
+
+        return new SingleItemParser(itemParser(klass));
+    }
+
+    @SuppressWarnings("unchecked")
+    private static ItemParser itemParser(Class<?> type) throws WsRestException {
+        ItemParser itemParser = ITEM_PARSERS.get(type);
+
+        if (itemParser == null) {
+            if (!type.isEnum()) {
+                throw new WsRestException(String.format("Cannot parse %s", type.getName()));
+            }
+
+            itemParser = new EnumParser((Class<? extends Enum>)type);
+
+            ItemParser existing = ITEM_PARSERS.putIfAbsent(type, itemParser);
+            if (existing != null) {
+                itemParser = existing;
+            }
+        }
+
+        return itemParser;
     }
 
     public abstract Object encode(Object value) throws WsRestException;
@@ -175,11 +260,12 @@ public abstract class ParameterParser {
                 return null;
             }
 
-            List list = (List)value;
-            String[] result = new String[list.size()];
+            Collection collection = (Collection)value;
+            String[] result = new String[collection.size()];
+            int i = 0;
 
-            for (int i = 0; i < list.size(); i++) {
-                result[i] = itemParser.encode(list.get(i));
+            for (Object item : collection) {
+                result[i++] = itemParser.encode(item);
             }
 
             return result;
@@ -208,12 +294,57 @@ public abstract class ParameterParser {
         }
     }
 
+    public interface Codec<T> {
+        String encode(T value) throws WsRestException;
+
+        T decode(String value) throws WsRestException;
+    }
+
     private abstract static class ItemParser {
         public abstract String encode(Object value) throws WsRestException;
 
         public abstract Object decode(String value) throws WsRestException;
     }
 
+    private static class CodecParser<T> extends ItemParser {
+        private final Codec<T> codec;
+
+        public CodecParser(Codec<T> codec) {
+            this.codec = codec;
+        }
+
+        @SuppressWarnings("unchecked")
+        @Override
+        public String encode(Object value) throws WsRestException {
+            if (value == null) {
+                return null;
+            }
+
+            return codec.encode((T)value);
+        }
+
+        @Override
+        public Object decode(String value) throws WsRestException {
+            return codec.decode(value);
+        }
+    }
+
+    private static class DynamicItemParser extends ItemParser {
+        @Override
+        public String encode(Object value) throws WsRestException {
+            if (value == null) {
+                return null;
+            }
+
+            return itemParser(value.getClass()).encode(value);
+        }
+
+        @Override
+        public Object decode(String value) throws WsRestException {
+            return value;
+        }
+    }
+
     private static class CharacterParser extends ItemParser {
         private final boolean nullable;
 
@@ -0,0 +1,46 @@
+package org.webathome.wsrest.client;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+// A path like /users/{id}/posts split into its literal parts and the named parameters that go
+// between them. There's always one more part than there are parameters.
+class PathTemplate {
+    private static final Pattern PATH_PARAM_PATTERN = Pattern.compile("\\{(.*?)\\}");
+
+    private final String[] parts;
+    private final String[] names;
+
+    public PathTemplate(String path) {
+        List<String> parts = new ArrayList<>();
+        List<String> names = new ArrayList<>();
+        Matcher matcher = PATH_PARAM_PATTERN.matcher(path);
+        int offset = 0;
+
+        while (matcher.find()) {
+            parts.add(path.substring(offset, matcher.start()));
+            names.add(matcher.group(1));
+
+            offset = matcher.end();
+        }
+
+        parts.add(path.substring(offset));
+
+        this.parts = parts.toArray(new String[parts.size()]);
+        this.names = names.toArray(new String[names.size()]);
+    }
+
+    public int getParameterCount() {
+        return names.length;
+    }
+
+    public String getName(int index) {
+        return names[index];
+    }
+
+    public String getPart(int index) {
+        return parts[index];
+    }
+}
@@ -1,7 +1,67 @@
 package org.webathome.wsrest.client;
 
-interface PendingRequest {
-    void handleError(Throwable e);
+import java.nio.ByteBuffer;
 
-    StreamState handleRequest(ResponseType response, long id, String body) throws WsRestException;
+abstract class PendingRequest {
+    private long id;
+    private SerialExecutor executor;
+    private RequestType method;
+    private String frame;
+    private ResponseCache cache;
+    private String cacheKey;
+    private long cacheVersion;
+
+    public long getId() {
+        return id;
+    }
+
+    public SerialExecutor getExecutor() {
+        return executor;
+    }
+
+    // Called when the connection is lost. Returns whether the request can be sent again on a new
+    // connection; sent tells whether the request may have reached the server.
+    public boolean canRetry(boolean sent) {
+        // The frame is only kept when it may have to be sent again after a reconnect.
+
+        if (frame == null) {
+            return false;
+        }
+
+        return !sent || method == RequestType.GET || method == RequestType.PUT || method == RequestType.DELETE;
+    }
+
+    public String getRetryFrame() {
+        return frame;
+    }
+
+    void attach(long id, SerialExecutor executor, RequestType method, String frame) {
+        this.id = id;
+        this.executor = executor;
+        this.method = method;
+        this.frame = frame;
+    }
+
+    // Whether the response can be served from and stored in the response cache.
+    public boolean isCacheable() {
+        return false;
+    }
+
+    void setCache(ResponseCache cache, String cacheKey) {
+        this.cache = cache;
+        this.cacheKey = cacheKey;
+        this.cacheVersion = cache.getVersion();
+    }
+
+    void cacheResponse(String body, long maxAge) {
+        if (cache != null && body != null && maxAge > 0) {
+            cache.put(cacheKey, body, maxAge, cacheVersion);
+        }
+    }
+
+    public abstract void handleError(Throwable e);
+
+    public abstract StreamState handleRequest(ResponseType response, long id, String body) throws WsRestException;
+
+    public abstract void handleBinary(ByteBuffer body) throws WsRestException;
 }
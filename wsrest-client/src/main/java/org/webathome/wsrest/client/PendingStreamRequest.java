@@ -1,14 +1,15 @@
 package org.webathome.wsrest.client;
 
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.List;
 
-class PendingStreamRequest implements PendingRequest {
+class PendingStreamRequest extends PendingRequest {
     private final Callback<Stream> callback;
     private final Connection connection;
-    private StreamImpl stream;
-    private long id;
-    private List<String> queue;
+    private volatile StreamImpl stream;
+    private List<Object> queue;
+    private boolean resuming;
 
     public PendingStreamRequest(Callback<Stream> callback, Connection connection) {
         if (callback == null) {
@@ -22,40 +23,62 @@ class PendingStreamRequest implements PendingRequest {
         this.connection = connection;
     }
 
-    public long getId() {
-        return id;
+    @Override
+    public void handleError(Throwable e) {
+        if (stream != null) {
+            stream.onError(e);
+        } else {
+            callback.call(null, e);
+        }
     }
 
     @Override
-    public void handleError(Throwable e) {
-        callback.call(null, e);
+    public boolean canRetry(boolean sent) {
+        // Once open, the stream is resumed where it left off instead of being opened again.
+
+        StreamImpl stream = this.stream;
+
+        if (stream != null) {
+            return stream.isResumable();
+        }
+
+        return super.canRetry(sent);
     }
 
     @Override
-    public StreamState handleRequest(ResponseType response, long id, String body) throws WsRestException {
-        this.id = id;
+    public String getRetryFrame() {
+        if (stream == null) {
+            return super.getRetryFrame();
+        }
 
+        resuming = true;
+
+        return Connection.buildFrame(RequestType.RESUME, "~", stream.getResumeBody(), getId());
+    }
+
+    @Override
+    public StreamState handleRequest(ResponseType response, long id, String body) throws WsRestException {
         switch (response) {
             case OPEN:
                 if (stream != null) {
-                    throw new WsRestException("Protocol error");
-                }
+                    if (!resuming) {
+                        throw new WsRestException("Protocol error");
+                    }
 
-                createStream(id);
+                    resuming = false;
 
-                if (queue != null) {
-                    for (String message : queue) {
-                        stream.onMessage(message);
-                    }
+                    stream.onResumed();
 
-                    queue = null;
+                    return StreamState.PENDING;
                 }
 
+                createStream(id, body);
+
                 return StreamState.PENDING;
 
             case CLOSE:
                 if (stream == null) {
-                    createStream(id);
+                    createStream(id, null);
                 }
 
                 stream.close(false);
@@ -63,13 +86,19 @@ class PendingStreamRequest implements PendingRequest {
                 return StreamState.CLOSED;
 
             case MESSAGE:
+                onMessage(body);
+
+                return StreamState.PENDING;
+
+            case WINDOW:
                 if (stream == null) {
-                    if (queue == null) {
-                        queue = new ArrayList<>();
-                    }
-                    queue.add(body);
-                } else {
-                    stream.onMessage(body);
+                    throw new WsRestException("Protocol error");
+                }
+
+                try {
+                    stream.onWindow(Integer.parseInt(body));
+                } catch (NumberFormatException e) {
+                    throw new WsRestException("Protocol error", e);
                 }
 
                 return StreamState.PENDING;
@@ -79,9 +108,36 @@ class PendingStreamRequest implements PendingRequest {
         }
     }
 
-    private void createStream(long id) {
-        stream = new StreamImpl(connection, id, this);
+    @Override
+    public void handleBinary(ByteBuffer body) throws WsRestException {
+        onMessage(body);
+    }
+
+    private void onMessage(Object message) {
+        if (stream == null) {
+            if (queue == null) {
+                queue = new ArrayList<>();
+            }
+            queue.add(message);
+        } else {
+            stream.onMessage(message);
+        }
+    }
+
+    private void createStream(long id, String token) {
+        stream = new StreamImpl(connection, id, token, this);
 
         callback.call(stream, null);
+
+        // A stream that's closed before it has been opened may still have sent messages, which
+        // come before the close.
+
+        if (queue != null) {
+            for (Object message : queue) {
+                stream.onMessage(message);
+            }
+
+            queue = null;
+        }
     }
 }
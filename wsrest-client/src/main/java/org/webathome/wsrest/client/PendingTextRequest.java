@@ -1,6 +1,8 @@
 package org.webathome.wsrest.client;
 
-class PendingTextRequest implements PendingRequest {
+import java.nio.ByteBuffer;
+
+class PendingTextRequest extends PendingRequest {
     private final Callback<String> callback;
 
     public PendingTextRequest(Callback<String> callback) {
@@ -11,6 +13,11 @@ class PendingTextRequest implements PendingRequest {
         this.callback = callback;
     }
 
+    @Override
+    public boolean isCacheable() {
+        return true;
+    }
+
     @Override
     public void handleError(Throwable e) {
         callback.call(null, e);
@@ -28,4 +35,9 @@ class PendingTextRequest implements PendingRequest {
                 throw new WsRestException("Invalid response type");
         }
     }
+
+    @Override
+    public void handleBinary(ByteBuffer body) throws WsRestException {
+        throw new WsRestException("Invalid response type");
+    }
 }
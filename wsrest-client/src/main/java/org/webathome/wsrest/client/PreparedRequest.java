@@ -0,0 +1,137 @@
+package org.webathome.wsrest.client;
+
+import java.util.ArrayList;
+import java.util.List;
+
+// A request that's prepared once and then executed many times with different values. The path
+// template is parsed and the parameter names are encoded up front. Binding values only appends
+// them to a builder that's reused by the thread.
+@SuppressWarnings("UnusedDeclaration")
+public class PreparedRequest {
+    private static final ThreadLocal<StringBuilder> PATH_BUILDER = new ThreadLocal<StringBuilder>() {
+        @Override
+        protected StringBuilder initialValue() {
+            return new StringBuilder();
+        }
+    };
+    private static final ThreadLocal<StringBuilder> QUERY_BUILDER = new ThreadLocal<StringBuilder>() {
+        @Override
+        protected StringBuilder initialValue() {
+            return new StringBuilder();
+        }
+    };
+
+    private final Connection connection;
+    private final RequestType method;
+    private final PathTemplate path;
+    private final int[] pathValues;
+    private final List<String> names = new ArrayList<>();
+    private final List<String> encodedNames = new ArrayList<>();
+    private final List<Boolean> form = new ArrayList<>();
+    private long timeout;
+
+    PreparedRequest(Connection connection, RequestType method, String path) {
+        this.connection = connection;
+        this.method = method;
+        this.path = new PathTemplate(path);
+        this.timeout = connection.getTimeout();
+
+        // A path parameter takes one value, even when it appears more than once in the path.
+
+        pathValues = new int[this.path.getParameterCount()];
+
+        for (int i = 0; i < pathValues.length; i++) {
+            String name = this.path.getName(i);
+            int index = names.indexOf(name);
+
+            if (index == -1) {
+                index = names.size();
+
+                names.add(name);
+                encodedNames.add(null);
+                form.add(false);
+            }
+
+            pathValues[i] = index;
+        }
+    }
+
+    // Values are bound in the order of the path parameters, followed by the query and form
+    // parameters in the order they were added.
+    public int getParameterCount() {
+        return names.size();
+    }
+
+    public PreparedRequest addQueryParam(String name) {
+        return addParam(name, false);
+    }
+
+    public PreparedRequest addFormParam(String name) {
+        return addParam(name, true);
+    }
+
+    private PreparedRequest addParam(String name, boolean isForm) {
+        if (name == null) {
+            throw new IllegalArgumentException("name");
+        }
+
+        names.add(name);
+        encodedNames.add(Request.urlEncode(name));
+        form.add(isForm);
+
+        return this;
+    }
+
+    public PreparedRequest setTimeout(long timeout) {
+        this.timeout = timeout;
+
+        return this;
+    }
+
+    public Request bind(Object... values) throws WsRestException {
+        if (values == null || values.length != names.size()) {
+            throw new IllegalArgumentException("values");
+        }
+
+        StringBuilder path = PATH_BUILDER.get();
+        StringBuilder queryString = QUERY_BUILDER.get();
+        StringBuilder formString = null;
+
+        path.setLength(0);
+        queryString.setLength(0);
+
+        path.append(this.path.getPart(0));
+
+        for (int i = 0; i < pathValues.length; i++) {
+            Request.appendPath(path, Request.encode(values[pathValues[i]]));
+            path.append(this.path.getPart(i + 1));
+        }
+
+        for (int i = 0; i < values.length; i++) {
+            String encodedName = encodedNames.get(i);
+            if (encodedName == null) {
+                continue;
+            }
+
+            if (form.get(i)) {
+                if (formString == null) {
+                    formString = new StringBuilder();
+                }
+
+                Request.appendUrl(formString, encodedName, Request.encode(values[i]));
+            } else {
+                Request.appendUrl(queryString, encodedName, Request.encode(values[i]));
+            }
+        }
+
+        if (queryString.length() > 0) {
+            path.append('?').append(queryString);
+        }
+
+        Request request = new Request(connection, method, path.toString(), null, formString, null);
+
+        request.setTimeout(timeout);
+
+        return request;
+    }
+}
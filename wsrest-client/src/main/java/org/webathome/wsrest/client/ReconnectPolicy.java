@@ -0,0 +1,81 @@
+package org.webathome.wsrest.client;
+
+import java.util.concurrent.ThreadLocalRandom;
+
+public class ReconnectPolicy {
+    private static final long DEFAULT_INITIAL_DELAY = 100;
+    private static final long DEFAULT_MAX_DELAY = 30 * 1000;
+    private static final int DEFAULT_MAX_QUEUED = 1000;
+    // Reconnecting never gives up by default.
+    private static final int DEFAULT_MAX_ATTEMPTS = 0;
+
+    private final long initialDelay;
+    private final long maxDelay;
+    private final int maxQueued;
+    private final int maxAttempts;
+
+    public ReconnectPolicy() {
+        this(DEFAULT_INITIAL_DELAY, DEFAULT_MAX_DELAY, DEFAULT_MAX_QUEUED);
+    }
+
+    public ReconnectPolicy(long initialDelay, long maxDelay, int maxQueued) {
+        this(initialDelay, maxDelay, maxQueued, DEFAULT_MAX_ATTEMPTS);
+    }
+
+    // The delay doubles with every failed attempt, starting at initialDelay and capped at
+    // maxDelay. At most maxQueued requests wait for the connection while reconnecting. After
+    // maxAttempts attempts in a row have failed, the waiting requests fail; 0 means no limit.
+    public ReconnectPolicy(long initialDelay, long maxDelay, int maxQueued, int maxAttempts) {
+        if (initialDelay <= 0) {
+            throw new IllegalArgumentException("initialDelay");
+        }
+        if (maxDelay < initialDelay) {
+            throw new IllegalArgumentException("maxDelay");
+        }
+        if (maxQueued < 0) {
+            throw new IllegalArgumentException("maxQueued");
+        }
+        if (maxAttempts < 0) {
+            throw new IllegalArgumentException("maxAttempts");
+        }
+
+        this.initialDelay = initialDelay;
+        this.maxDelay = maxDelay;
+        this.maxQueued = maxQueued;
+        this.maxAttempts = maxAttempts;
+    }
+
+    public long getInitialDelay() {
+        return initialDelay;
+    }
+
+    public long getMaxDelay() {
+        return maxDelay;
+    }
+
+    public int getMaxQueued() {
+        return maxQueued;
+    }
+
+    public int getMaxAttempts() {
+        return maxAttempts;
+    }
+
+    public boolean canAttempt(int attempt) {
+        return maxAttempts == 0 || attempt < maxAttempts;
+    }
+
+    public long getDelay(int attempt) {
+        long delay = maxDelay;
+        if (attempt < 32) {
+            delay = Math.min(maxDelay, initialDelay << attempt);
+        }
+
+        // Half of the delay is random, so clients that lost their connection at the same
+        // time don't all come back at the same time.
+
+        long half = delay / 2;
+
+        return delay - half + ThreadLocalRandom.current().nextLong(half + 1);
+    }
+}
@@ -1,6 +1,7 @@
 package org.webathome.wsrest.client;
 
 import com.google.gson.Gson;
+import com.google.gson.JsonParseException;
 
 import java.io.UnsupportedEncodingException;
 import java.lang.reflect.Type;
@@ -17,19 +18,33 @@ public class Request {
     private StringBuilder queryString;
     private StringBuilder form;
     private String body;
+    private long timeout;
 
     Request(Connection connection, RequestType method, String path) {
         this.connection = connection;
         this.method = method;
         this.path = path;
+        this.timeout = connection.getTimeout();
     }
 
-    private String[] encode(Object value) throws WsRestException {
+    // Used by proxies, which have already encoded the parameters.
+    Request(Connection connection, RequestType method, String path, StringBuilder queryString, StringBuilder form, String body) {
+        this(connection, method, path);
+
+        this.queryString = queryString;
+        this.form = form;
+        this.body = body;
+    }
+
+    static String[] encode(Object value) throws WsRestException {
         if (value == null) {
             return EMPTY_STRING_ARRAY;
         }
 
-        Object encoded = ParameterParser.valueParser(value.getClass()).encode(value);
+        return toStrings(ParameterParser.valueParser(value.getClass()).encode(value));
+    }
+
+    static String[] toStrings(Object encoded) {
         if (encoded instanceof String) {
             return new String[]{(String)encoded};
         }
@@ -40,6 +55,15 @@ public class Request {
         return (String[])encoded;
     }
 
+    static void appendPath(StringBuilder sb, String[] encoded) {
+        for (int i = 0; i < encoded.length; i++) {
+            if (i > 0) {
+                sb.append(',');
+            }
+            sb.append(encoded[i]);
+        }
+    }
+
     public Request addPathParam(String name, Object value) throws WsRestException {
         if (name == null) {
             throw new IllegalArgumentException("name");
@@ -55,16 +79,7 @@ public class Request {
             sb.append(path, 0, pos);
         }
 
-        String[] encoded = encode(value);
-
-        if (encoded != null) {
-            for (int i = 0; i < encoded.length; i++) {
-                if (i > 0) {
-                    sb.append(',');
-                }
-                sb.append(encoded[i]);
-            }
-        }
+        appendPath(sb, encode(value));
 
         pos += name.length() + 2;
         if (pos < path.length() - 1) {
@@ -77,24 +92,30 @@ public class Request {
     }
 
     private void appendUrl(StringBuilder sb, String name, Object value) throws WsRestException {
-        String[] encoded = encode(value);
+        appendUrl(sb, urlEncode(name), encode(value));
+    }
 
+    static void appendUrl(StringBuilder sb, String encodedName, String[] encoded) {
         for (String item : encoded) {
             if (sb.length() > 0) {
                 sb.append('&');
             }
-            try {
-                sb.append(URLEncoder.encode(name, "UTF-8")).append('=');
-                if (item != null) {
-                    sb.append(URLEncoder.encode(item, "UTF-8"));
-                }
-            } catch (UnsupportedEncodingException e) {
-                // Does not occur.
-                throw new RuntimeException(e);
+            sb.append(encodedName).append('=');
+            if (item != null) {
+                sb.append(urlEncode(item));
             }
         }
     }
 
+    static String urlEncode(String value) {
+        try {
+            return URLEncoder.encode(value, "UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            // Does not occur.
+            throw new RuntimeException(e);
+        }
+    }
+
     public Request addFormParam(String name, Object value) throws WsRestException {
         if (name == null) {
             throw new IllegalArgumentException("name");
@@ -141,6 +162,14 @@ public class Request {
         return this;
     }
 
+    // Overrides the default timeout of the connection. For streams, the timeout only
+    // applies until the stream has been opened.
+    public Request setTimeout(long timeout) {
+        this.timeout = timeout;
+
+        return this;
+    }
+
     public void execute() throws WsRestException {
         execute((Runnable)null);
     }
@@ -164,6 +193,18 @@ public class Request {
         return response.getValue();
     }
 
+    public ResponseFuture<String> getTextAsync() {
+        ResponseFuture<String> future = new ResponseFuture<>();
+
+        try {
+            getText(future);
+        } catch (WsRestException e) {
+            future.call(null, e);
+        }
+
+        return future;
+    }
+
     public void getText(Callback<String> callback) throws WsRestException {
         if (callback == null) {
             throw new IllegalArgumentException("callback");
@@ -173,7 +214,24 @@ public class Request {
             throw new WsRestException("Invalid operation for STREAM request type");
         }
 
-        execute(new PendingTextRequest(callback));
+        SingleFlight singleFlight = connection.getSingleFlight();
+
+        if (singleFlight == null || method != RequestType.GET || body != null || form != null) {
+            execute(new PendingTextRequest(callback));
+            return;
+        }
+
+        Callback<String> flight = singleFlight.join(ResponseCache.createKey(method, getPathAndQuery()), callback);
+        if (flight == null) {
+            return;
+        }
+
+        try {
+            execute(new PendingTextRequest(flight));
+        } catch (WsRestException e) {
+            singleFlight.abandon(flight, e);
+            throw e;
+        }
     }
 
     @SuppressWarnings("unchecked")
@@ -211,13 +269,25 @@ public class Request {
         });
     }
 
+    public <T> ResponseFuture<T> getResponseAsync(Class<? extends T> type) {
+        ResponseFuture<T> future = new ResponseFuture<>();
+
+        try {
+            getResponse(type, future);
+        } catch (WsRestException e) {
+            future.call(null, e);
+        }
+
+        return future;
+    }
+
     @SuppressWarnings("unchecked")
     public <T> T getJson(Class<?> type) throws WsRestException {
         if (type == null) {
             throw new IllegalArgumentException("type");
         }
 
-        return (T)GSON.fromJson(getText(), type);
+        return (T)parseJson(getText(), type);
     }
 
     public <T> T getJson(Type type) throws WsRestException {
@@ -225,7 +295,7 @@ public class Request {
             throw new IllegalArgumentException("type");
         }
 
-        return GSON.fromJson(getText(), type);
+        return parseJson(getText(), type);
     }
 
     @SuppressWarnings("unchecked")
@@ -242,7 +312,11 @@ public class Request {
             public void call(String value, Throwable e) {
                 T result = null;
                 if (value != null) {
-                    result = (T)GSON.fromJson(value, type);
+                    try {
+                        result = (T)parseJson(value, type);
+                    } catch (WsRestException e1) {
+                        e = e1;
+                    }
                 }
 
                 callback.call(result, e);
@@ -264,7 +338,11 @@ public class Request {
             public void call(String value, Throwable e) {
                 T result = null;
                 if (value != null) {
-                    result = GSON.fromJson(value, type);
+                    try {
+                        result = parseJson(value, type);
+                    } catch (WsRestException e1) {
+                        e = e1;
+                    }
                 }
 
                 callback.call(result, e);
@@ -272,6 +350,29 @@ public class Request {
         });
     }
 
+    static <T> T parseJson(String value, Type type) throws WsRestException {
+        // A body that doesn't parse fails the request like any other error, so callbacks and
+        // futures always complete.
+
+        try {
+            return GSON.fromJson(value, type);
+        } catch (JsonParseException e) {
+            throw new WsRestException("Invalid JSON response", e);
+        }
+    }
+
+    public <T> ResponseFuture<T> getJsonAsync(Type type) {
+        ResponseFuture<T> future = new ResponseFuture<>();
+
+        try {
+            getJson(type, future);
+        } catch (WsRestException e) {
+            future.call(null, e);
+        }
+
+        return future;
+    }
+
     public Stream getStream() throws WsRestException {
         final Response<Stream> response = new Response<>();
 
@@ -280,6 +381,18 @@ public class Request {
         return response.getValue();
     }
 
+    public ResponseFuture<Stream> getStreamAsync() {
+        ResponseFuture<Stream> future = new ResponseFuture<>();
+
+        try {
+            getStream(future);
+        } catch (WsRestException e) {
+            future.call(null, e);
+        }
+
+        return future;
+    }
+
     public void getStream(Callback<Stream> callback) throws WsRestException {
         if (method != RequestType.STREAM) {
             throw new WsRestException("Request type must be STREAM");
@@ -288,14 +401,20 @@ public class Request {
         execute(new PendingStreamRequest(callback, connection));
     }
 
-    private void execute(PendingRequest request) throws WsRestException {
-        String path = this.path;
-        if (queryString != null) {
-            path += "?" + queryString.toString();
+    private String getPathAndQuery() {
+        if (queryString == null) {
+            return path;
         }
+
+        // A prepared request already has its query string in the path.
+
+        return path + (path.indexOf('?') == -1 ? '?' : '&') + queryString.toString();
+    }
+
+    private void execute(PendingRequest request) throws WsRestException {
         String body = form != null ? form.toString() : this.body;
 
-        connection.execute(method, path, body, request);
+        connection.execute(method, getPathAndQuery(), body, request, timeout);
     }
 
     private static class Response<T> implements Callback<T> {
@@ -7,5 +7,9 @@ public enum RequestType {
     DELETE,
     STREAM,
     MESSAGE,
-    CLOSE
+    CLOSE,
+    WINDOW,
+    CANCEL,
+    RESUME,
+    BATCH
 }
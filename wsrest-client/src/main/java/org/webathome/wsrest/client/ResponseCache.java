@@ -0,0 +1,145 @@
+package org.webathome.wsrest.client;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+// Caches responses of GET requests for as long as the server allows. The cache is bounded by
+// the approximate number of bytes it holds; when it's full, the least recently used responses
+// are dropped first. A cache can be shared between connections to the same server.
+public class ResponseCache {
+    // Rough number of bytes an entry takes on top of its strings.
+    private static final int ENTRY_OVERHEAD = 64;
+
+    private final Object syncRoot = new Object();
+    private final long maxSize;
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private long size;
+    private long version;
+
+    public ResponseCache(long maxSize) {
+        if (maxSize <= 0) {
+            throw new IllegalArgumentException("maxSize");
+        }
+
+        this.maxSize = maxSize;
+    }
+
+    public long getMaxSize() {
+        return maxSize;
+    }
+
+    public long getSize() {
+        synchronized (syncRoot) {
+            return size;
+        }
+    }
+
+    static String createKey(RequestType method, String path) {
+        return method + " " + path;
+    }
+
+    String get(String key) {
+        synchronized (syncRoot) {
+            Entry entry = entries.get(key);
+            if (entry == null) {
+                return null;
+            }
+
+            if (entry.expires - System.nanoTime() <= 0) {
+                remove(key);
+                return null;
+            }
+
+            return entry.body;
+        }
+    }
+
+    // Responses that were requested before the last invalidation may be stale already, so the
+    // version the request started with is checked before anything is stored.
+    long getVersion() {
+        synchronized (syncRoot) {
+            return version;
+        }
+    }
+
+    void put(String key, String body, long maxAge, long version) {
+        int entrySize = ENTRY_OVERHEAD + (key.length() + body.length()) * 2;
+
+        synchronized (syncRoot) {
+            if (version != this.version || entrySize > maxSize) {
+                return;
+            }
+
+            remove(key);
+
+            entries.put(key, new Entry(body, System.nanoTime() + maxAge * 1000000, entrySize));
+            size += entrySize;
+
+            Iterator<Entry> iterator = entries.values().iterator();
+
+            while (size > maxSize) {
+                size -= iterator.next().size;
+                iterator.remove();
+            }
+        }
+    }
+
+    private void remove(String key) {
+        Entry entry = entries.remove(key);
+        if (entry != null) {
+            size -= entry.size;
+        }
+    }
+
+    // Drops the responses for the path and everything below it, regardless of the query string.
+    public void invalidate(String path) {
+        if (path == null) {
+            throw new IllegalArgumentException("path");
+        }
+
+        synchronized (syncRoot) {
+            version++;
+
+            Iterator<Map.Entry<String, Entry>> iterator = entries.entrySet().iterator();
+
+            while (iterator.hasNext()) {
+                Map.Entry<String, Entry> entry = iterator.next();
+                String key = entry.getKey();
+                String entryPath = key.substring(key.indexOf(' ') + 1);
+
+                if (
+                    entryPath.startsWith(path) && (
+                        entryPath.length() == path.length() ||
+                        entryPath.charAt(path.length()) == '?' ||
+                        entryPath.charAt(path.length()) == '/'
+                    )
+                ) {
+                    size -= entry.getValue().size;
+                    iterator.remove();
+                }
+            }
+        }
+    }
+
+    public void clear() {
+        synchronized (syncRoot) {
+            version++;
+
+            entries.clear();
+            size = 0;
+        }
+    }
+
+    private static class Entry {
+        final String body;
+        final long expires;
+        final int size;
+
+        Entry(String body, long expires, int size) {
+            this.body = body;
+            this.expires = expires;
+            this.size = size;
+        }
+    }
+}
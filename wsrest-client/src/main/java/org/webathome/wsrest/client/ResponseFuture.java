@@ -0,0 +1,180 @@
+package org.webathome.wsrest.client;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.*;
+
+public class ResponseFuture<T> implements Future<T>, Callback<T> {
+    private final Object syncRoot = new Object();
+    private boolean done;
+    private boolean cancelled;
+    private T value;
+    private Throwable error;
+    private List<Callback<T>> callbacks;
+
+    @Override
+    public void call(T value, Throwable e) {
+        complete(value, e, false);
+    }
+
+    private boolean complete(T value, Throwable e, boolean cancelled) {
+        List<Callback<T>> callbacks;
+
+        synchronized (syncRoot) {
+            if (done) {
+                return false;
+            }
+
+            this.done = true;
+            this.cancelled = cancelled;
+            this.value = value;
+            this.error = e;
+
+            callbacks = this.callbacks;
+            this.callbacks = null;
+
+            syncRoot.notifyAll();
+        }
+
+        // Callbacks run on the thread that completes the future, which normally is the
+        // thread that received the response.
+
+        if (callbacks != null) {
+            for (Callback<T> callback : callbacks) {
+                callback.call(value, e);
+            }
+        }
+
+        return true;
+    }
+
+    public ResponseFuture<T> addCallback(Callback<T> callback) {
+        if (callback == null) {
+            throw new IllegalArgumentException("callback");
+        }
+
+        synchronized (syncRoot) {
+            if (!done) {
+                if (callbacks == null) {
+                    callbacks = new ArrayList<>();
+                }
+                callbacks.add(callback);
+                return this;
+            }
+        }
+
+        callback.call(value, error);
+
+        return this;
+    }
+
+    // Cancelling only completes the future. The request itself is not aborted and its
+    // response is ignored.
+    @Override
+    public boolean cancel(boolean mayInterruptIfRunning) {
+        return complete(null, new CancellationException(), true);
+    }
+
+    @Override
+    public boolean isCancelled() {
+        synchronized (syncRoot) {
+            return cancelled;
+        }
+    }
+
+    @Override
+    public boolean isDone() {
+        synchronized (syncRoot) {
+            return done;
+        }
+    }
+
+    @Override
+    public T get() throws InterruptedException, ExecutionException {
+        synchronized (syncRoot) {
+            while (!done) {
+                syncRoot.wait();
+            }
+
+            return getValue();
+        }
+    }
+
+    @Override
+    public T get(long timeout, TimeUnit unit) throws InterruptedException, ExecutionException, TimeoutException {
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+
+        synchronized (syncRoot) {
+            while (!done) {
+                long remaining = deadline - System.nanoTime();
+                if (remaining <= 0) {
+                    throw new TimeoutException();
+                }
+
+                TimeUnit.NANOSECONDS.timedWait(syncRoot, remaining);
+            }
+
+            return getValue();
+        }
+    }
+
+    private T getValue() throws ExecutionException {
+        if (cancelled) {
+            throw new CancellationException();
+        }
+        if (error != null) {
+            throw new ExecutionException(error);
+        }
+
+        return value;
+    }
+
+    public static <T> ResponseFuture<List<T>> all(List<ResponseFuture<T>> futures) {
+        if (futures == null) {
+            throw new IllegalArgumentException("futures");
+        }
+
+        final ResponseFuture<List<T>> result = new ResponseFuture<>();
+        final List<T> values = new ArrayList<>(futures.size());
+        final int[] remaining = new int[]{futures.size()};
+
+        if (futures.isEmpty()) {
+            result.call(values, null);
+            return result;
+        }
+
+        for (int i = 0; i < futures.size(); i++) {
+            values.add(null);
+        }
+
+        // The results keep the order of the futures, not the order in which they complete.
+        // The first error fails the whole set.
+
+        for (int i = 0; i < futures.size(); i++) {
+            final int index = i;
+
+            futures.get(i).addCallback(new Callback<T>() {
+                @Override
+                public void call(T value, Throwable e) {
+                    if (e != null) {
+                        result.call(null, e);
+                        return;
+                    }
+
+                    boolean completed;
+
+                    synchronized (values) {
+                        values.set(index, value);
+                        completed = --remaining[0] == 0;
+                    }
+
+                    if (completed) {
+                        result.call(values, null);
+                    }
+                }
+            });
+        }
+
+        return result;
+    }
+}
@@ -0,0 +1,96 @@
+package org.webathome.wsrest.client;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+class Scheduler {
+    // Request timeouts don't need to be precise, so they are tracked in a timing wheel
+    // instead of each getting their own scheduled task.
+    private static final long TICK_DURATION = 50;
+    private static final int BUCKET_COUNT = 512;
+
+    private static final Object SYNC_ROOT = new Object();
+    private static ScheduledExecutorService executor;
+    private static ExecutorService callbackExecutor;
+    private static TimingWheel timingWheel;
+
+    private Scheduler() {
+    }
+
+    public static ScheduledFuture<?> schedule(Runnable runnable, long delay) {
+        return schedule(runnable, delay, TimeUnit.MILLISECONDS);
+    }
+
+    public static ScheduledFuture<?> schedule(Runnable runnable, long delay, TimeUnit unit) {
+        if (runnable == null) {
+            throw new IllegalArgumentException("runnable");
+        }
+
+        return getExecutor().schedule(runnable, delay, unit);
+    }
+
+    public static ScheduledFuture<?> scheduleAtFixedRate(Runnable runnable, long period) {
+        if (runnable == null) {
+            throw new IllegalArgumentException("runnable");
+        }
+
+        return getExecutor().scheduleAtFixedRate(runnable, period, period, TimeUnit.MILLISECONDS);
+    }
+
+    public static TimingWheel.Timeout newTimeout(Runnable task, long delay) {
+        TimingWheel timingWheel;
+
+        synchronized (SYNC_ROOT) {
+            if (Scheduler.timingWheel == null) {
+                Scheduler.timingWheel = new TimingWheel(TICK_DURATION, BUCKET_COUNT);
+            }
+
+            timingWheel = Scheduler.timingWheel;
+        }
+
+        return timingWheel.newTimeout(task, delay);
+    }
+
+    // Timers hand work that calls into the application off to these threads, so a slow callback
+    // can't hold up the timers of every connection.
+    public static Executor getCallbackExecutor() {
+        synchronized (SYNC_ROOT) {
+            if (callbackExecutor == null) {
+                callbackExecutor = Executors.newCachedThreadPool(new ThreadFactory() {
+                    @Override
+                    public Thread newThread(Runnable runnable) {
+                        Thread thread = new Thread(runnable, "WsRest callback");
+                        thread.setDaemon(true);
+                        return thread;
+                    }
+                });
+            }
+
+            return callbackExecutor;
+        }
+    }
+
+    private static ScheduledExecutorService getExecutor() {
+        synchronized (SYNC_ROOT) {
+            // One thread serves all connections. It's only started once someone needs it.
+
+            if (executor == null) {
+                executor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+                    @Override
+                    public Thread newThread(Runnable runnable) {
+                        Thread thread = new Thread(runnable, "WsRest scheduler");
+                        thread.setDaemon(true);
+                        return thread;
+                    }
+                });
+            }
+
+            return executor;
+        }
+    }
+}
@@ -0,0 +1,70 @@
+package org.webathome.wsrest.client;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.Executor;
+
+class SerialExecutor implements Executor {
+    private final Executor executor;
+    private final Deque<Runnable> tasks = new ArrayDeque<>();
+    private boolean running;
+
+    public SerialExecutor(Executor executor) {
+        if (executor == null) {
+            throw new IllegalArgumentException("executor");
+        }
+
+        this.executor = executor;
+    }
+
+    @Override
+    public void execute(Runnable task) {
+        if (task == null) {
+            throw new IllegalArgumentException("task");
+        }
+
+        synchronized (tasks) {
+            tasks.addLast(task);
+
+            // Whoever is running the tasks will pick this one up.
+
+            if (running) {
+                return;
+            }
+
+            running = true;
+        }
+
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                runTasks();
+            }
+        });
+    }
+
+    private void runTasks() {
+        while (true) {
+            Runnable task;
+
+            synchronized (tasks) {
+                task = tasks.pollFirst();
+
+                if (task == null) {
+                    running = false;
+                    return;
+                }
+            }
+
+            try {
+                task.run();
+            } catch (Throwable e) {
+                // A failing task must not stall the tasks queued behind it, but the failure is
+                // still reported.
+
+                Thread thread = Thread.currentThread();
+                thread.getUncaughtExceptionHandler().uncaughtException(thread, e);
+            }
+        }
+    }
+}
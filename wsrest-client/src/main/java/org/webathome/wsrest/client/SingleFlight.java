@@ -0,0 +1,70 @@
+package org.webathome.wsrest.client;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+// Lets identical requests that are in flight at the same time share a single request to the
+// server. The first caller sends the request; the others wait for its response.
+class SingleFlight {
+    private final Map<String, Flight> flights = new HashMap<>();
+
+    // Returns the callback the request must be sent with, or null when the caller has been
+    // attached to a request that's already in flight.
+    public Callback<String> join(String key, Callback<String> callback) {
+        synchronized (flights) {
+            Flight flight = flights.get(key);
+
+            if (flight != null) {
+                flight.callbacks.add(callback);
+                return null;
+            }
+
+            flight = new Flight(key, callback);
+            flights.put(key, flight);
+
+            return flight;
+        }
+    }
+
+    // Called when the first caller couldn't send the request. The exception goes to the callers
+    // that joined it; the first caller gets it thrown.
+    public void abandon(Callback<String> flight, Throwable e) {
+        List<Callback<String>> callbacks = ((Flight)flight).complete();
+
+        for (Callback<String> callback : callbacks.subList(1, callbacks.size())) {
+            callback.call(null, e);
+        }
+    }
+
+    private class Flight implements Callback<String> {
+        final String key;
+        final List<Callback<String>> callbacks = new ArrayList<>();
+
+        Flight(String key, Callback<String> callback) {
+            this.key = key;
+            callbacks.add(callback);
+        }
+
+        List<Callback<String>> complete() {
+            synchronized (flights) {
+                if (flights.get(key) == this) {
+                    flights.remove(key);
+                }
+
+                return new ArrayList<>(callbacks);
+            }
+        }
+
+        @Override
+        public void call(String value, Throwable e) {
+            // Everyone gets the response on the thread that handles the response of the request
+            // that was sent.
+
+            for (Callback<String> callback : complete()) {
+                callback.call(value, e);
+            }
+        }
+    }
+}
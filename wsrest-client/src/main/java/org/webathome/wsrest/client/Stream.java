@@ -1,15 +1,23 @@
 package org.webathome.wsrest.client;
 
+import java.nio.ByteBuffer;
+
 public interface Stream {
     void setCallback(Callback callback);
 
+    boolean isWritable();
+
     void sendText(String message) throws WsRestException;
 
+    void sendBinary(ByteBuffer message) throws WsRestException;
+
     void close() throws WsRestException;
 
     public static interface Callback {
         void onMessage(String message);
 
+        void onBinary(ByteBuffer message);
+
         void onClosed();
 
         void onError(Throwable e);
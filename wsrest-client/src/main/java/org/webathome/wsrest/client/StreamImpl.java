@@ -1,17 +1,47 @@
 package org.webathome.wsrest.client;
 
-import java.util.ArrayList;
-import java.util.List;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.Deque;
 
 class StreamImpl implements Stream {
+    // Number of messages either side may send before it has to wait for a WINDOW update.
+    static final int WINDOW_SIZE = 64;
+    // Number of messages we buffer locally when the server hasn't given us credit.
+    static final int MAX_BACKLOG = 1024;
+    // Milliseconds between checks whether a saturated socket has room again for the backlog.
+    static final long DRAIN_INTERVAL = 10;
+    // Milliseconds a closed stream waits for its backlog to drain before it's closed anyway.
+    static final long CLOSE_TIMEOUT = 30 * 1000;
+
+    // Marks the point in the queue or the outbox where the stream was closed.
+    private static final Object CLOSED = new Object();
+
+    private final Object syncRoot = new Object();
     private final Connection connection;
     private final long id;
+    private final String token;
     private final PendingStreamRequest request;
     private Callback callback;
     private boolean closed;
-    private List<String> queue = new ArrayList<>();
+    private boolean closing;
+    private final Deque<Object> queue = new ArrayDeque<>();
+    private int credit = WINDOW_SIZE;
+    private int consumed;
+    private final Deque<Object> backlog = new ArrayDeque<>();
+    // Frames that have been given credit and wait to be handed to the connection. They're sent
+    // without holding our lock, because the connection takes its own lock and calls back into
+    // the stream while holding it.
+    private final Deque<Object> outbox = new ArrayDeque<>();
+    private boolean flushing;
+    private boolean drainScheduled;
+    // Number of messages received and given credit for. The server needs these to resume the
+    // stream on a new connection. They're read without the lock while reconnecting.
+    private volatile long received;
+    private volatile long granted;
 
-    public StreamImpl(Connection connection, long id, PendingStreamRequest request) {
+    // A token means the server allows the stream to be resumed.
+    public StreamImpl(Connection connection, long id, String token, PendingStreamRequest request) {
         if (connection == null) {
             throw new IllegalArgumentException("connection");
         }
@@ -21,83 +51,404 @@ class StreamImpl implements Stream {
 
         this.connection = connection;
         this.id = id;
+        this.token = token;
         this.request = request;
     }
 
+    public boolean isResumable() {
+        return token != null;
+    }
+
+    public String getResumeBody() {
+        return token + " " + received + " " + granted;
+    }
+
+    public void onResumed() throws WsRestException {
+        // The server starts counting our messages from scratch on the new connection.
+
+        synchronized (syncRoot) {
+            credit = WINDOW_SIZE;
+        }
+
+        onWindow(0);
+    }
+
     @Override
     public void setCallback(Callback callback) {
-        synchronized (connection.getSyncRoot()) {
+        synchronized (syncRoot) {
             this.callback = callback;
+        }
 
-            if (callback == null) {
-                if (queue == null) {
-                    queue = new ArrayList<>();
-                }
-            } else if (queue != null) {
-                for (String message : queue) {
-                    callback.onMessage(message);
-                }
+        // Queued messages are delivered on the executor of the request like all others,
+        // so they can't overtake or be overtaken by new ones.
 
-                queue = null;
+        request.getExecutor().execute(new Runnable() {
+            @Override
+            public void run() {
+                deliverQueue();
             }
+        });
+    }
+
+    public void onMessage(Object message) {
+        synchronized (syncRoot) {
+            received++;
+            queue.addLast(message);
         }
+
+        deliverQueue();
     }
 
-    public void onMessage(String message) {
-        synchronized (connection.getSyncRoot()) {
-            if (queue != null) {
-                queue.add(message);
+    private void deliverQueue() {
+        // This only runs on the executor of the request, which runs one task at a time.
+        // Callbacks are called without holding the lock.
+
+        while (true) {
+            Callback callback;
+            Object message;
+
+            synchronized (syncRoot) {
+                if (this.callback == null || queue.isEmpty()) {
+                    return;
+                }
+
+                callback = this.callback;
+                message = queue.removeFirst();
+            }
+
+            if (message == CLOSED) {
+                callback.onClosed();
+            } else if (message instanceof Throwable) {
+                callback.onError((Throwable)message);
             } else {
-                callback.onMessage(message);
+                deliver(callback, message);
+            }
+        }
+    }
+
+    private void deliver(Callback callback, Object message) {
+        if (message instanceof ByteBuffer) {
+            callback.onBinary((ByteBuffer)message);
+        } else {
+            callback.onMessage((String)message);
+        }
+
+        // Messages only count against the window until they've been handed to the callback,
+        // so the server stops sending while we're queueing.
+
+        int increment = 0;
+
+        synchronized (syncRoot) {
+            if (!closed && ++consumed >= WINDOW_SIZE / 2) {
+                increment = consumed;
+                granted += increment;
+                consumed = 0;
+            }
+        }
+
+        if (increment > 0) {
+            try {
+                connection.executeStream(RequestType.WINDOW, String.valueOf(increment), id);
+            } catch (WsRestException e) {
+                // The connection is gone. If the stream is resumed, the server learns about the
+                // credit from the resume request.
+            }
+        }
+    }
+
+    public void onWindow(int increment) throws WsRestException {
+        // The connection takes its own lock, so it's asked before we take ours.
+
+        boolean writable = connection.isWritable();
+        boolean close;
+
+        synchronized (syncRoot) {
+            if (closed) {
+                return;
+            }
+
+            credit += increment;
+
+            while (writable && credit > 0 && !backlog.isEmpty()) {
+                credit--;
+
+                outbox.addLast(backlog.removeFirst());
             }
+
+            scheduleDrain();
+
+            close = closing && backlog.isEmpty();
+        }
+
+        flush();
+
+        if (close) {
+            close(true);
         }
     }
 
     public Callback getCallback() {
-        synchronized (connection.getSyncRoot()) {
+        synchronized (syncRoot) {
             return callback;
         }
     }
 
+    @Override
+    public boolean isWritable() {
+        if (!connection.isWritable()) {
+            return false;
+        }
+
+        synchronized (syncRoot) {
+            return !closed && !closing && credit > 0;
+        }
+    }
+
     @Override
     public void sendText(String message) throws WsRestException {
-        synchronized (connection.getSyncRoot()) {
-            if (closed) {
+        enqueue(message);
+    }
+
+    @Override
+    public void sendBinary(ByteBuffer message) throws WsRestException {
+        if (message == null) {
+            throw new IllegalArgumentException("message");
+        }
+
+        enqueue(message);
+    }
+
+    private void enqueue(Object message) throws WsRestException {
+        // While the socket can't keep up, messages stay in the backlog instead of filling up the
+        // socket.
+
+        boolean writable = connection.isWritable();
+
+        synchronized (syncRoot) {
+            if (closed || closing) {
                 throw new WsRestException("Stream has been closed");
             }
+
+            if (writable && credit > 0 && backlog.isEmpty()) {
+                credit--;
+
+                outbox.addLast(message);
+            } else if (backlog.size() < MAX_BACKLOG) {
+                if (message instanceof ByteBuffer) {
+                    // The caller owns the buffer, so we need our own copy.
+
+                    ByteBuffer source = (ByteBuffer)message;
+                    ByteBuffer copy = ByteBuffer.allocate(source.remaining());
+                    copy.put(source.duplicate());
+                    copy.flip();
+                    message = copy;
+                }
+
+                backlog.addLast(message);
+            } else {
+                throw new WsRestException("Stream send window exhausted");
+            }
+
+            scheduleDrain();
+        }
+
+        flush();
+    }
+
+    private void scheduleDrain() {
+        // The socket doesn't tell us when it has room again, so a backlog that has credit but is
+        // held back by the socket is checked on a timer.
+
+        if (drainScheduled || closed || credit <= 0 || backlog.isEmpty()) {
+            return;
         }
 
-        connection.execute(
-            RequestType.MESSAGE,
-            "~",
-            message,
-            null,
-            id
+        drainScheduled = true;
+
+        Scheduler.schedule(
+            new Runnable() {
+                @Override
+                public void run() {
+                    connection.executeTimerTask(new Runnable() {
+                        @Override
+                        public void run() {
+                            onDrainTimer();
+                        }
+                    });
+                }
+            },
+            DRAIN_INTERVAL
         );
     }
 
+    private void onDrainTimer() {
+        synchronized (syncRoot) {
+            drainScheduled = false;
+        }
+
+        try {
+            onWindow(0);
+        } catch (WsRestException e) {
+            // The connection is gone, and the stream hears about it from the connection.
+        }
+    }
+
+    private void flush() throws WsRestException {
+        // Only one thread sends at a time, so frames go out in the order they were queued.
+        // Frames queued while another thread is sending are sent by that thread.
+
+        synchronized (syncRoot) {
+            if (flushing) {
+                return;
+            }
+
+            flushing = true;
+        }
+
+        boolean done = false;
+
+        try {
+            while (true) {
+                Object message;
+
+                synchronized (syncRoot) {
+                    message = outbox.pollFirst();
+
+                    if (message == null) {
+                        flushing = false;
+                        done = true;
+                        return;
+                    }
+                }
+
+                send(message);
+            }
+        } finally {
+            if (!done) {
+                synchronized (syncRoot) {
+                    flushing = false;
+                }
+            }
+        }
+    }
+
+    private void send(Object message) throws WsRestException {
+        if (message == CLOSED) {
+            connection.executeStream(RequestType.CLOSE, null, id);
+        } else if (message instanceof ByteBuffer) {
+            connection.executeBinary(id, (ByteBuffer)message);
+        } else {
+            connection.executeStream(RequestType.MESSAGE, (String)message, id);
+        }
+    }
+
     @Override
     public void close() throws WsRestException {
+        synchronized (syncRoot) {
+            // Messages still waiting for credit go out before the stream is closed.
+
+            if (!closed && !backlog.isEmpty()) {
+                if (!closing) {
+                    closing = true;
+
+                    // A server that never gives credit again would keep the stream around forever.
+
+                    Scheduler.schedule(
+                        new Runnable() {
+                            @Override
+                            public void run() {
+                                connection.executeTimerTask(new Runnable() {
+                                    @Override
+                                    public void run() {
+                                        onCloseTimeout();
+                                    }
+                                });
+                            }
+                        },
+                        CLOSE_TIMEOUT
+                    );
+                }
+                return;
+            }
+        }
+
         close(true);
     }
 
+    private void onCloseTimeout() {
+        synchronized (syncRoot) {
+            if (closed) {
+                return;
+            }
+
+            // The messages in the backlog are dropped, so the callback hears about it before
+            // the close.
+
+            queue.addLast(new WsRestException("Stream close timed out"));
+        }
+
+        try {
+            close(true);
+        } catch (WsRestException e) {
+            // The connection is gone, which closes the stream on the server as well.
+        }
+    }
+
+    public void onError(Throwable e) {
+        synchronized (syncRoot) {
+            if (closed) {
+                return;
+            }
+
+            closed = true;
+
+            backlog.clear();
+            outbox.clear();
+
+            queue.addLast(e);
+            queue.addLast(CLOSED);
+        }
+
+        connection.removeRequest(request);
+
+        request.getExecutor().execute(new Runnable() {
+            @Override
+            public void run() {
+                deliverQueue();
+            }
+        });
+    }
+
     public void close(boolean sendMessage) throws WsRestException {
-        synchronized (connection.getSyncRoot()) {
+        synchronized (syncRoot) {
             if (closed) {
                 return;
             }
 
             if (sendMessage) {
-                connection.execute(RequestType.CLOSE, "~", null, null, id);
+                outbox.addLast(CLOSED);
             }
 
-            connection.removeRequest(request);
-
             closed = true;
 
-            if (callback != null) {
-                callback.onClosed();
+            backlog.clear();
+
+            // The callback hears about the close after the messages that came in before it.
+
+            queue.addLast(CLOSED);
+        }
+
+        connection.removeRequest(request);
+
+        request.getExecutor().execute(new Runnable() {
+            @Override
+            public void run() {
+                deliverQueue();
             }
+        });
+
+        if (sendMessage) {
+            flush();
         }
     }
 }
@@ -0,0 +1,132 @@
+package org.webathome.wsrest.client;
+
+import java.util.*;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+class TimingWheel {
+    private final Object syncRoot = new Object();
+    private final long tickDuration;
+    private final long tickNanos;
+    private final List<Set<Timeout>> buckets;
+    private final long startTime = System.nanoTime();
+    private long tick;
+    private int size;
+    private ScheduledFuture<?> ticker;
+
+    public TimingWheel(long tickDuration, int bucketCount) {
+        if (tickDuration <= 0) {
+            throw new IllegalArgumentException("tickDuration");
+        }
+        if (bucketCount <= 0) {
+            throw new IllegalArgumentException("bucketCount");
+        }
+
+        this.tickDuration = tickDuration;
+        this.tickNanos = TimeUnit.MILLISECONDS.toNanos(tickDuration);
+
+        List<Set<Timeout>> buckets = new ArrayList<>(bucketCount);
+        for (int i = 0; i < bucketCount; i++) {
+            buckets.add(new HashSet<Timeout>());
+        }
+
+        this.buckets = buckets;
+    }
+
+    public Timeout newTimeout(Runnable task, long delay) {
+        if (task == null) {
+            throw new IllegalArgumentException("task");
+        }
+
+        synchronized (syncRoot) {
+            // The wheel only ticks while it has timeouts. When it starts again, we skip the
+            // ticks that passed while it was idle.
+
+            if (ticker == null) {
+                tick = currentTick();
+
+                ticker = Scheduler.scheduleAtFixedRate(
+                    new Runnable() {
+                        @Override
+                        public void run() {
+                            onTick();
+                        }
+                    },
+                    tickDuration
+                );
+            }
+
+            long elapsed = System.nanoTime() - startTime + TimeUnit.MILLISECONDS.toNanos(delay);
+            long deadline = Math.max((elapsed + tickNanos - 1) / tickNanos, tick + 1);
+
+            Timeout timeout = new Timeout(task, deadline, buckets.get((int)(deadline % buckets.size())));
+
+            timeout.bucket.add(timeout);
+            size++;
+
+            return timeout;
+        }
+    }
+
+    private long currentTick() {
+        return (System.nanoTime() - startTime) / tickNanos;
+    }
+
+    private void onTick() {
+        List<Timeout> expired = new ArrayList<>();
+
+        synchronized (syncRoot) {
+            long now = currentTick();
+
+            while (tick < now) {
+                tick++;
+
+                // Buckets hold timeouts for all rounds of the wheel, so only take the ones
+                // that are due in this one.
+
+                Iterator<Timeout> iterator = buckets.get((int)(tick % buckets.size())).iterator();
+                while (iterator.hasNext()) {
+                    Timeout timeout = iterator.next();
+                    if (timeout.deadline <= tick) {
+                        iterator.remove();
+                        size--;
+                        expired.add(timeout);
+                    }
+                }
+            }
+
+            if (size == 0 && ticker != null) {
+                ticker.cancel(false);
+                ticker = null;
+            }
+        }
+
+        for (Timeout timeout : expired) {
+            try {
+                timeout.task.run();
+            } catch (Throwable e) {
+                // An exception would stop the ticker from ever running again.
+            }
+        }
+    }
+
+    public class Timeout {
+        private final Runnable task;
+        private final long deadline;
+        private final Set<Timeout> bucket;
+
+        private Timeout(Runnable task, long deadline, Set<Timeout> bucket) {
+            this.task = task;
+            this.deadline = deadline;
+            this.bucket = bucket;
+        }
+
+        public void cancel() {
+            synchronized (syncRoot) {
+                if (bucket.remove(this)) {
+                    size--;
+                }
+            }
+        }
+    }
+}
@@ -1,7 +1,14 @@
 package org.webathome.wsrest.client;
 
+import java.nio.ByteBuffer;
+
 public interface WebSocket {
     void sendText(String value);
 
+    void sendBinary(ByteBuffer value);
+
+    // False while so many frames are waiting to be sent that new requests should hold off.
+    boolean isWritable();
+
     void close();
 }
@@ -1,9 +1,15 @@
 package org.webathome.wsrest.client;
 
+import java.nio.ByteBuffer;
+
 public interface WebSocketCallback {
+    void onOpen();
+
     void onClosed();
 
     void onStringAvailable(String value);
 
+    void onBinaryAvailable(ByteBuffer value);
+
     void onError(Throwable e);
 }
@@ -0,0 +1,104 @@
+package org.webathome.wsrest.common;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// Thread safe LongHashMap. The keys are spread over a number of stripes that each have
+// their own lock, so threads working on different IDs rarely contend.
+public class ConcurrentLongHashMap<V> {
+    private static final int STRIPE_BITS = 4;
+
+    private final LongHashMap<V>[] stripes;
+    private final AtomicInteger size = new AtomicInteger();
+
+    // Java can't create an array of a generic type, so the array is created raw.
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    public ConcurrentLongHashMap() {
+        stripes = new LongHashMap[1 << STRIPE_BITS];
+
+        for (int i = 0; i < stripes.length; i++) {
+            stripes[i] = new LongHashMap<>();
+        }
+    }
+
+    private LongHashMap<V> stripe(long key) {
+        // Use the high bits of the hash; the low bits pick the slot within the stripe.
+
+        return stripes[LongHashMap.hash(key) >>> (32 - STRIPE_BITS)];
+    }
+
+    public V get(long key) {
+        LongHashMap<V> stripe = stripe(key);
+
+        synchronized (stripe) {
+            return stripe.get(key);
+        }
+    }
+
+    public V put(long key, V value) {
+        LongHashMap<V> stripe = stripe(key);
+
+        synchronized (stripe) {
+            V previous = stripe.put(key, value);
+            if (previous == null) {
+                size.incrementAndGet();
+            }
+            return previous;
+        }
+    }
+
+    public V remove(long key) {
+        LongHashMap<V> stripe = stripe(key);
+
+        synchronized (stripe) {
+            V previous = stripe.remove(key);
+            if (previous != null) {
+                size.decrementAndGet();
+            }
+            return previous;
+        }
+    }
+
+    public boolean remove(long key, V value) {
+        LongHashMap<V> stripe = stripe(key);
+
+        synchronized (stripe) {
+            if (!stripe.remove(key, value)) {
+                return false;
+            }
+            size.decrementAndGet();
+            return true;
+        }
+    }
+
+    // The size is kept separately so it can be read without going through the stripes.
+    public int size() {
+        return size.get();
+    }
+
+    public boolean isEmpty() {
+        return size.get() == 0;
+    }
+
+    public void clear() {
+        for (LongHashMap<V> stripe : stripes) {
+            synchronized (stripe) {
+                size.addAndGet(-stripe.size());
+                stripe.clear();
+            }
+        }
+    }
+
+    public List<V> values() {
+        List<V> result = new ArrayList<>();
+
+        for (LongHashMap<V> stripe : stripes) {
+            synchronized (stripe) {
+                result.addAll(stripe.values());
+            }
+        }
+
+        return result;
+    }
+}
@@ -0,0 +1,195 @@
+package org.webathome.wsrest.common;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+// Hash map keyed on primitive longs, so lookups by ID don't box the key or allocate
+// entries. Uses open addressing with linear probing. Null values are not allowed.
+public class LongHashMap<V> {
+    private static final int DEFAULT_CAPACITY = 16;
+
+    private long[] keys;
+    private Object[] values;
+    private int mask;
+    private int size;
+
+    public LongHashMap() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    public LongHashMap(int capacity) {
+        int length = DEFAULT_CAPACITY;
+        while (length < capacity * 2) {
+            length <<= 1;
+        }
+
+        allocate(length);
+    }
+
+    private void allocate(int length) {
+        keys = new long[length];
+        values = new Object[length];
+        mask = length - 1;
+    }
+
+    public static int hash(long key) {
+        // IDs are handed out sequentially, so spread them over the table.
+
+        long hash = key * 0x9E3779B97F4A7C15L;
+        return (int)(hash ^ (hash >>> 32));
+    }
+
+    private int indexOf(long key) {
+        int index = hash(key) & mask;
+
+        while (values[index] != null) {
+            if (keys[index] == key) {
+                return index;
+            }
+
+            index = (index + 1) & mask;
+        }
+
+        return -1;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    @SuppressWarnings("unchecked")
+    public V get(long key) {
+        int index = indexOf(key);
+
+        return index == -1 ? null : (V)values[index];
+    }
+
+    @SuppressWarnings("unchecked")
+    public V put(long key, V value) {
+        if (value == null) {
+            throw new IllegalArgumentException("value");
+        }
+
+        int index = hash(key) & mask;
+
+        while (values[index] != null) {
+            if (keys[index] == key) {
+                V previous = (V)values[index];
+                values[index] = value;
+                return previous;
+            }
+
+            index = (index + 1) & mask;
+        }
+
+        keys[index] = key;
+        values[index] = value;
+
+        // Linear probing degrades quickly when the table fills up, so keep it at most half full.
+
+        if (++size * 2 > values.length) {
+            resize();
+        }
+
+        return null;
+    }
+
+    @SuppressWarnings("unchecked")
+    public V remove(long key) {
+        int index = indexOf(key);
+        if (index == -1) {
+            return null;
+        }
+
+        V previous = (V)values[index];
+
+        removeAt(index);
+
+        return previous;
+    }
+
+    public boolean remove(long key, V value) {
+        int index = indexOf(key);
+        if (index == -1 || values[index] != value) {
+            return false;
+        }
+
+        removeAt(index);
+
+        return true;
+    }
+
+    private void removeAt(int index) {
+        values[index] = null;
+        size--;
+
+        // Shift back entries that probed past the removed one, so lookups don't need
+        // tombstones.
+
+        int next = index;
+
+        while (true) {
+            next = (next + 1) & mask;
+
+            if (values[next] == null) {
+                return;
+            }
+
+            int ideal = hash(keys[next]) & mask;
+
+            boolean canMove = next > index
+                ? ideal <= index || ideal > next
+                : ideal <= index && ideal > next;
+
+            if (canMove) {
+                keys[index] = keys[next];
+                values[index] = values[next];
+                values[next] = null;
+                index = next;
+            }
+        }
+    }
+
+    public void clear() {
+        Arrays.fill(values, null);
+        size = 0;
+    }
+
+    @SuppressWarnings("unchecked")
+    public List<V> values() {
+        List<V> result = new ArrayList<>(size);
+
+        for (Object value : values) {
+            if (value != null) {
+                result.add((V)value);
+            }
+        }
+
+        return result;
+    }
+
+    private void resize() {
+        long[] oldKeys = keys;
+        Object[] oldValues = values;
+
+        allocate(oldValues.length * 2);
+
+        for (int i = 0; i < oldValues.length; i++) {
+            if (oldValues[i] != null) {
+                int index = hash(oldKeys[i]) & mask;
+
+                while (values[index] != null) {
+                    index = (index + 1) & mask;
+                }
+
+                keys[index] = oldKeys[i];
+                values[index] = oldValues[i];
+            }
+        }
+    }
+}
@@ -0,0 +1,50 @@
+package org.webathome.wsrest.loopback;
+
+import org.webathome.wsrest.client.WebSocket;
+import org.webathome.wsrest.client.WebSocketCallback;
+import org.webathome.wsrest.client.WebSocketFactory;
+import org.webathome.wsrest.server.WsRestContext;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+// Connects clients directly to a context in the same process. The URL passed to the connection
+// isn't used.
+public class LoopbackWebSocketFactory implements WebSocketFactory {
+    private final WsRestContext context;
+    private final Executor executor;
+
+    public LoopbackWebSocketFactory(WsRestContext context) {
+        this(context, newDefaultExecutor());
+    }
+
+    public LoopbackWebSocketFactory(WsRestContext context, Executor executor) {
+        if (context == null) {
+            throw new IllegalArgumentException("context");
+        }
+        if (executor == null) {
+            throw new IllegalArgumentException("executor");
+        }
+
+        this.context = context;
+        this.executor = executor;
+    }
+
+    private static ExecutorService newDefaultExecutor() {
+        return Executors.newCachedThreadPool(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "wsrest-loopback");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    @Override
+    public WebSocket newInstance(String url, WebSocketCallback callback) throws Exception {
+        return new WebSocketImpl(context, callback, executor);
+    }
+}
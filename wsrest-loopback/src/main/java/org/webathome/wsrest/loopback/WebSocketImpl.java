@@ -0,0 +1,193 @@
+package org.webathome.wsrest.loopback;
+
+import org.webathome.wsrest.client.OutboundQueue;
+import org.webathome.wsrest.client.WebSocketCallback;
+import org.webathome.wsrest.client.WsRestException;
+import org.webathome.wsrest.server.LocalSession;
+import org.webathome.wsrest.server.WsRestContext;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.Executor;
+
+class WebSocketImpl implements org.webathome.wsrest.client.WebSocket {
+    private static final Object CLOSED = new Object();
+
+    private final WebSocketCallback callback;
+    private final Executor executor;
+    private final LocalSession session;
+    private volatile boolean closed;
+
+    // Frames go out one at a time in both directions, which keeps them in order while they're
+    // handed over on the executor.
+
+    private final OutboundQueue outbound = new OutboundQueue() {
+        @Override
+        protected void write(final Object frame) {
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        if (!closed) {
+                            if (frame instanceof ByteBuffer) {
+                                session.sendBinary((ByteBuffer)frame);
+                            } else {
+                                session.sendText((String)frame);
+                            }
+                        }
+                    } finally {
+                        outbound.onWriteComplete();
+                    }
+                }
+            });
+        }
+    };
+
+    private final OutboundQueue inbound = new OutboundQueue() {
+        @Override
+        protected void write(final Object frame) {
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    InboundFrame inboundFrame = (InboundFrame)frame;
+
+                    try {
+                        if (!closed) {
+                            deliver(inboundFrame.value);
+                        }
+                    } finally {
+                        // The session sends its next frame only now, the way a socket stops
+                        // reading while the client is busy.
+
+                        if (inboundFrame.completed != null) {
+                            inboundFrame.completed.run();
+                        }
+
+                        inbound.onWriteComplete();
+                    }
+                }
+            });
+        }
+    };
+
+    public WebSocketImpl(WsRestContext context, WebSocketCallback callback, Executor executor) {
+        if (callback == null) {
+            throw new IllegalArgumentException("callback");
+        }
+
+        this.callback = callback;
+        this.executor = executor;
+
+        session = new LocalSession(context, null, new LocalSession.Listener() {
+            @Override
+            public void onText(String text, Runnable completed) {
+                receive(text, completed);
+            }
+
+            @Override
+            public void onBinary(ByteBuffer binary, Runnable completed) {
+                receive(binary, completed);
+            }
+
+            @Override
+            public void onClosed() {
+                receive(CLOSED, null);
+            }
+        });
+
+        // Like a real socket, the connection opens asynchronously.
+
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                inbound.setReady();
+                outbound.setReady();
+
+                WebSocketImpl.this.callback.onOpen();
+            }
+        });
+    }
+
+    private void receive(Object frame, Runnable completed) {
+        // The session waits for each frame to be delivered before it sends the next one, so this
+        // queue holds at most one frame and the close.
+
+        if (!inbound.offer(new InboundFrame(frame, completed))) {
+            reportError(new WsRestException("Too many frames waiting to be received"));
+        }
+    }
+
+    private void deliver(Object frame) {
+        if (frame == CLOSED) {
+            callback.onClosed();
+        } else if (frame instanceof ByteBuffer) {
+            callback.onBinaryAvailable((ByteBuffer)frame);
+        } else {
+            callback.onStringAvailable((String)frame);
+        }
+    }
+
+    @Override
+    public void sendText(String text) {
+        if (text == null) {
+            throw new IllegalArgumentException("text");
+        }
+
+        send(text);
+    }
+
+    @Override
+    public void sendBinary(ByteBuffer value) {
+        if (value == null) {
+            throw new IllegalArgumentException("value");
+        }
+
+        send(value);
+    }
+
+    private void send(Object frame) {
+        if (!outbound.offer(frame)) {
+            reportError(new WsRestException("Too many frames waiting to be sent"));
+        }
+    }
+
+    private void reportError(final Throwable e) {
+        // The sender may be holding its own locks and be in the middle of changing its state,
+        // so the error is reported on the executor.
+
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                callback.onError(e);
+            }
+        });
+    }
+
+    @Override
+    public boolean isWritable() {
+        return outbound.isWritable();
+    }
+
+    @Override
+    public void close() {
+        if (closed) {
+            return;
+        }
+
+        closed = true;
+
+        outbound.close();
+        inbound.close();
+
+        session.close();
+    }
+
+    private static class InboundFrame {
+        final Object value;
+        final Runnable completed;
+
+        InboundFrame(Object value, Runnable completed) {
+            this.value = value;
+            this.completed = completed;
+        }
+    }
+}
@@ -3,6 +3,7 @@ package org.webathome.wsrest.server;
 import org.apache.commons.lang3.Validate;
 
 import javax.websocket.*;
+import java.nio.ByteBuffer;
 import java.util.HashMap;
 import java.util.Map;
 
@@ -28,7 +29,11 @@ public abstract class AbstractWsEndpoint {
                 }
             }
 
-            sessions.put(session, new BufferedSession(session, requestContext));
+            BufferedSession bufferedSession = new BufferedSession(new WebSocketTransport(session), requestContext, context.getScheduler(), context.getStreamRegistry());
+
+            sessions.put(session, bufferedSession);
+
+            context.addSession(bufferedSession);
         }
     }
 
@@ -41,6 +46,8 @@ public abstract class AbstractWsEndpoint {
         }
 
         if (bufferedSession != null) {
+            context.removeSession(bufferedSession);
+
             bufferedSession.close(null);
         }
     }
@@ -54,6 +61,8 @@ public abstract class AbstractWsEndpoint {
         }
 
         if (bufferedSession != null) {
+            context.removeSession(bufferedSession);
+
             bufferedSession.close(e);
         }
     }
@@ -70,4 +79,17 @@ public abstract class AbstractWsEndpoint {
             context.execute(message, bufferedSession);
         }
     }
+
+    @OnMessage
+    public void onMessage(Session session, ByteBuffer message) {
+        BufferedSession bufferedSession;
+
+        synchronized (syncRoot) {
+            bufferedSession = sessions.get(session);
+        }
+
+        if (bufferedSession != null) {
+            context.execute(message, bufferedSession);
+        }
+    }
 }
@@ -1,57 +1,158 @@
 package org.webathome.wsrest.server;
 
 import org.apache.commons.lang3.Validate;
+import org.webathome.wsrest.common.LongHashMap;
 
 import javax.websocket.SendHandler;
 import javax.websocket.SendResult;
-import javax.websocket.Session;
-import java.util.Deque;
-import java.util.HashMap;
-import java.util.LinkedList;
-import java.util.Map;
+import java.util.*;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
 
 class BufferedSession {
+    // Number of bytes a stream lane may send per round before the next stream gets its turn.
+    private static final int QUANTUM = 16 * 1024;
+
     private final Object syncRoot = new Object();
-    private final Session session;
-    private final Deque<String> queue = new LinkedList<>();
-    private boolean sending;
-    private final Map<Long, StreamImpl> streams = new HashMap<>();
+    private final Transport transport;
+    private final Deque<OutboundMessage> rpcQueue = new ArrayDeque<>();
+    private final LongHashMap<Lane> lanes = new LongHashMap<>();
+    private final Deque<Lane> activeLanes = new ArrayDeque<>();
+    private OutboundMessage sending;
+    private boolean closed;
+    private final LongHashMap<StreamImpl> streams = new LongHashMap<>();
+    private final LongHashMap<Future<?>> requests = new LongHashMap<>();
     private final RequestContext requestContext;
+    private final ScheduledExecutorService scheduler;
+    private final StreamRegistry streamRegistry;
 
-    public BufferedSession(Session session, RequestContext requestContext) {
-        Validate.notNull(session, "session");
+    public BufferedSession(Transport transport, RequestContext requestContext, ScheduledExecutorService scheduler, StreamRegistry streamRegistry) {
+        Validate.notNull(transport, "transport");
+        Validate.notNull(scheduler, "scheduler");
+        Validate.notNull(streamRegistry, "streamRegistry");
 
-        this.session = session;
+        this.transport = transport;
         this.requestContext = requestContext;
+        this.scheduler = scheduler;
+        this.streamRegistry = streamRegistry;
     }
 
     public RequestContext getRequestContext() {
         return requestContext;
     }
 
+    public ScheduledExecutorService getScheduler() {
+        return scheduler;
+    }
+
+    public StreamRegistry getStreamRegistry() {
+        return streamRegistry;
+    }
+
     public void sendText(String text) {
         Validate.notNull(text, "text");
 
+        send(new OutboundMessage(OutboundMessage.NO_STREAM, text));
+    }
+
+    public void send(OutboundMessage message) {
+        Validate.notNull(message, "message");
+
         synchronized (syncRoot) {
-            queue.addLast(text);
+            if (closed) {
+                message.complete();
+                return;
+            }
+
+            if (message.getStreamId() == OutboundMessage.NO_STREAM) {
+                rpcQueue.addLast(message);
+            } else {
+                Lane lane = lanes.get(message.getStreamId());
+                if (lane == null) {
+                    lane = new Lane(message.getStreamId());
+                    lanes.put(lane.streamId, lane);
+                    activeLanes.addLast(lane);
+                }
+
+                lane.queue.addLast(message);
+            }
 
             beginSend();
         }
     }
 
     private void beginSend() {
-        if (sending || queue.size() == 0) {
+        if (sending != null) {
+            return;
+        }
+
+        final OutboundMessage pending = nextMessage();
+        if (pending == null) {
             return;
         }
 
-        final String pending = queue.getFirst();
+        sending = pending;
+
+        pending.dispatch();
 
-        session.getAsyncRemote().sendText(pending, new SendHandler() {
+        SendHandler handler = new SendHandler() {
             @Override
             public void onResult(SendResult sendResult) {
                 onSendResult(pending, sendResult);
             }
-        });
+        };
+
+        if (pending.getText() != null) {
+            transport.sendText(pending.getText(), handler);
+        } else {
+            transport.sendBinary(pending.getBinary(), handler);
+        }
+    }
+
+    private OutboundMessage nextMessage() {
+        // RPC responses always go first so interactive calls aren't stuck behind stream backlogs.
+
+        if (!rpcQueue.isEmpty()) {
+            return rpcQueue.removeFirst();
+        }
+
+        // Streams share the rest using deficit round robin. A lane that can't afford its next
+        // message gets a new quantum and moves to the back of the line.
+
+        while (!activeLanes.isEmpty()) {
+            Lane lane = activeLanes.getFirst();
+            OutboundMessage message = lane.queue.getFirst();
+
+            if (message.getLength() <= lane.deficit) {
+                lane.deficit -= message.getLength();
+                lane.queue.removeFirst();
+
+                if (lane.queue.isEmpty()) {
+                    activeLanes.removeFirst();
+                    lanes.remove(lane.streamId);
+                }
+
+                return message;
+            }
+
+            lane.deficit += QUANTUM;
+            activeLanes.addLast(activeLanes.removeFirst());
+        }
+
+        return null;
+    }
+
+    // Number of messages waiting to be sent, not counting the one being sent.
+    public int getQueuedCount() {
+        synchronized (syncRoot) {
+            int count = rpcQueue.size();
+
+            for (Lane lane : activeLanes) {
+                count += lane.queue.size();
+            }
+
+            return count;
+        }
     }
 
     public void registerStream(StreamImpl stream) {
@@ -76,21 +177,46 @@ class BufferedSession {
         }
     }
 
-    private void onSendResult(String pending, SendResult sendResult) {
+    public void registerRequest(long id, Future<?> request) {
+        Validate.notNull(request, "request");
+
+        synchronized (syncRoot) {
+            requests.put(id, request);
+        }
+    }
+
+    public void removeRequest(long id, Future<?> request) {
+        synchronized (syncRoot) {
+            requests.remove(id, request);
+        }
+    }
+
+    public void cancelRequest(long id) {
+        Future<?> request;
+
+        synchronized (syncRoot) {
+            request = requests.remove(id);
+        }
+
+        if (request != null) {
+            request.cancel(true);
+        }
+    }
+
+    private void onSendResult(OutboundMessage pending, SendResult sendResult) {
         synchronized (syncRoot) {
             // We specifically compare for referential equality because we're checking whether the pending
             // message is what we've last send. This concerns the message, not the contents!
-            //noinspection StringEquality
-            if (queue.size() == 0 || pending != queue.getFirst()) {
-                // LOG.warn("Finished sending a message, but the head of the queue wasn't what we were sending");
+            if (pending != sending) {
+                // LOG.warn("Finished sending a message, but it wasn't what we were sending");
                 return;
             }
 
-            if (sendResult.isOK()) {
-                sending = false;
+            sending = null;
 
-                queue.removeFirst();
+            pending.complete();
 
+            if (sendResult.isOK()) {
                 // Start a new run.
 
                 beginSend();
@@ -98,11 +224,10 @@ class BufferedSession {
                 // LOG.warn("Exception while sending a message", sendResult.getException());
 
                 // Note sure what to do. Let's kill the session. The other side will be informed of
-                // this and should initiate a new session. Because we leave the pending message
-                // at the head of the queue, it will be picked up in the next try.
+                // this and can reconnect and resume its streams on a new session.
 
                 try {
-                    this.session.close();
+                    transport.close();
                 } catch (Throwable e) {
                     // LOG.warn("Could not close existing session", e);
                 }
@@ -111,19 +236,63 @@ class BufferedSession {
     }
 
     public void close(Throwable e) {
+        List<StreamImpl> streams;
+
         synchronized (syncRoot) {
-            for (StreamImpl stream : streams.values()) {
-                if (e != null) {
-                    Stream.Callback callback = stream.getCallback();
-                    if (callback != null) {
-                        callback.onError(e);
-                    }
+            streams = this.streams.values();
+
+            this.streams.clear();
+        }
+
+        // Streams are closed outside of our lock because they call back into the session
+        // while holding their own.
+
+        for (StreamImpl stream : streams) {
+            // Streams that can be resumed wait for the client to come back on a new connection.
+
+            if (stream.detach(this, e)) {
+                continue;
+            }
+
+            if (e != null) {
+                Stream.Callback callback = stream.getCallback();
+                if (callback != null) {
+                    callback.onError(e);
                 }
+            }
+
+            stream.close(false);
+        }
 
-                stream.close(false);
+        synchronized (syncRoot) {
+            closed = true;
+
+            // Release buffers of messages that will never be send. The message that's currently
+            // being send is released when the send completes.
+
+            for (OutboundMessage message : rpcQueue) {
+                message.complete();
+            }
+
+            for (Lane lane : activeLanes) {
+                for (OutboundMessage message : lane.queue) {
+                    message.complete();
+                }
             }
 
-            streams.clear();
+            rpcQueue.clear();
+            lanes.clear();
+            activeLanes.clear();
+        }
+    }
+
+    private static class Lane {
+        final long streamId;
+        final Deque<OutboundMessage> queue = new ArrayDeque<>();
+        int deficit;
+
+        Lane(long streamId) {
+            this.streamId = streamId;
         }
     }
 }
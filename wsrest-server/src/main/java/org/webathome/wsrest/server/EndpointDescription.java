@@ -234,7 +234,7 @@ class EndpointDescription {
                 return new Response(
                     ResponseType.OPEN,
                     request.getId(),
-                    null
+                    stream.open()
                 );
             } else {
                 return null;
@@ -243,6 +243,7 @@ class EndpointDescription {
             return new Response(
                 ResponseType.OK,
                 request.getId(),
+                matchedMethod.getMaxAge(),
                 stringResult
             );
         }
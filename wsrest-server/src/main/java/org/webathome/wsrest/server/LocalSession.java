@@ -0,0 +1,115 @@
+package org.webathome.wsrest.server;
+
+import org.apache.commons.lang3.Validate;
+
+import javax.websocket.SendHandler;
+import javax.websocket.SendResult;
+import java.nio.ByteBuffer;
+
+// A session with a client in the same process. Frames are exchanged in memory instead of over a
+// web socket, but are otherwise handled exactly like frames from a remote client.
+public class LocalSession {
+    private final WsRestContext context;
+    private final Listener listener;
+    private final BufferedSession session;
+    private final Object syncRoot = new Object();
+    private boolean closed;
+
+    public LocalSession(WsRestContext context, RequestContext requestContext, Listener listener) {
+        Validate.notNull(context, "context");
+        Validate.notNull(listener, "listener");
+
+        this.context = context;
+        this.listener = listener;
+
+        session = new BufferedSession(new LocalTransport(), requestContext, context.getScheduler(), context.getStreamRegistry());
+
+        context.addSession(session);
+    }
+
+    public void sendText(String text) {
+        Validate.notNull(text, "text");
+
+        context.execute(text, session);
+    }
+
+    public void sendBinary(ByteBuffer binary) {
+        Validate.notNull(binary, "binary");
+
+        context.execute(binary, session);
+    }
+
+    public void close() {
+        synchronized (syncRoot) {
+            if (closed) {
+                return;
+            }
+
+            closed = true;
+        }
+
+        context.removeSession(session);
+
+        session.close(null);
+    }
+
+    // Called with the frames the server sends to the client. These are called while the session
+    // holds its lock, so implementations must hand the frame off and return. The session sends
+    // nothing more until the frame has been taken and completed has been run.
+    public interface Listener {
+        void onText(String text, Runnable completed);
+
+        void onBinary(ByteBuffer binary, Runnable completed);
+
+        void onClosed();
+    }
+
+    private class LocalTransport implements Transport {
+        @Override
+        public void sendText(String text, SendHandler handler) {
+            listener.onText(text, completion(handler));
+        }
+
+        @Override
+        public void sendBinary(ByteBuffer binary, SendHandler handler) {
+            // The buffer is released when the send completes, so the client gets its own copy.
+
+            ByteBuffer copy = ByteBuffer.allocate(binary.remaining());
+            copy.put(binary.duplicate());
+            copy.flip();
+
+            listener.onBinary(copy, completion(handler));
+        }
+
+        private Runnable completion(final SendHandler handler) {
+            // Completing on the scheduler starts the next send there, instead of in the listener
+            // or recursing into the session for every queued message.
+
+            return new Runnable() {
+                @Override
+                public void run() {
+                    context.getScheduler().execute(new Runnable() {
+                        @Override
+                        public void run() {
+                            handler.onResult(new SendResult());
+                        }
+                    });
+                }
+            };
+        }
+
+        @Override
+        public void close() {
+            // The session calls this while holding its lock.
+
+            context.getScheduler().execute(new Runnable() {
+                @Override
+                public void run() {
+                    LocalSession.this.close();
+
+                    listener.onClosed();
+                }
+            });
+        }
+    }
+}
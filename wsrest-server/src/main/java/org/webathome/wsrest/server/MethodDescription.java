@@ -1,5 +1,6 @@
 package org.webathome.wsrest.server;
 
+import org.webathome.wsrest.server.annotations.MaxAge;
 import org.webathome.wsrest.server.annotations.STREAM;
 
 import javax.ws.rs.*;
@@ -22,6 +23,7 @@ class MethodDescription {
     private final ParameterDescription returnParameter;
     private final ParameterEncoding produces;
     private final ParameterEncoding consumes;
+    private final long maxAge;
 
     public MethodDescription(Method method, List<String> defaultProduces, List<String> defaultConsumes) throws WsRestException {
         this.method = method;
@@ -30,6 +32,7 @@ class MethodDescription {
         String path = null;
         List<String> produces = defaultProduces;
         List<String> consumes = defaultConsumes;
+        long maxAge = -1;
 
         for (Annotation annotation : method.getAnnotations()) {
             Class<? extends Annotation> annotationType = annotation.annotationType();
@@ -50,6 +53,8 @@ class MethodDescription {
                 produces = Collections.unmodifiableList(Arrays.asList(((Produces)annotation).value()));
             } else if (annotationType == Consumes.class) {
                 consumes = Collections.unmodifiableList(Arrays.asList(((Consumes)annotation).value()));
+            } else if (annotationType == MaxAge.class) {
+                maxAge = ((MaxAge)annotation).value();
             }
         }
 
@@ -64,6 +69,7 @@ class MethodDescription {
         this.consumes = parseParameterEncoding(consumes);
         this.type = type;
         this.path = path;
+        this.maxAge = maxAge;
         this.returnParameter = new ParameterDescription(
             new Annotation[0],
             method.getGenericReturnType(),
@@ -103,6 +109,10 @@ class MethodDescription {
             parameters.add(parameter);
         }
 
+        if (maxAge != -1 && (type != RequestType.GET || maxAge < 0)) {
+            throw new WsRestException("MaxAge must be a GET method and can't be negative");
+        }
+
         // Validate the parameters.
 
         if (this.consumes != ParameterEncoding.URL) {
@@ -234,4 +244,9 @@ class MethodDescription {
     public ParameterEncoding getConsumes() {
         return consumes;
     }
+
+    // Number of milliseconds the response may be cached, or -1 when it can't be cached.
+    public long getMaxAge() {
+        return maxAge;
+    }
 }
@@ -0,0 +1,78 @@
+package org.webathome.wsrest.server;
+
+import java.nio.ByteBuffer;
+
+class OutboundMessage {
+    // Messages that aren't part of a stream are scheduled in the RPC lane.
+    static final long NO_STREAM = -1;
+
+    private final long streamId;
+    private String text;
+    private final ByteBuffer binary;
+    private final Runnable completed;
+    private final int count;
+    private boolean dispatched;
+
+    public OutboundMessage(long streamId, String text) {
+        this(streamId, text, 1);
+    }
+
+    public OutboundMessage(long streamId, String text, int count) {
+        this.streamId = streamId;
+        this.text = text;
+        this.binary = null;
+        this.completed = null;
+        this.count = count;
+    }
+
+    public OutboundMessage(long streamId, ByteBuffer binary, Runnable completed) {
+        this.streamId = streamId;
+        this.text = null;
+        this.binary = binary;
+        this.completed = completed;
+        this.count = 1;
+    }
+
+    public long getStreamId() {
+        return streamId;
+    }
+
+    public synchronized String getText() {
+        return text;
+    }
+
+    public ByteBuffer getBinary() {
+        return binary;
+    }
+
+    // Number of stream messages in this frame, which is what flow control counts.
+    public int getCount() {
+        return count;
+    }
+
+    public synchronized int getLength() {
+        return text != null ? text.length() : binary.remaining();
+    }
+
+    public synchronized void dispatch() {
+        dispatched = true;
+    }
+
+    public synchronized boolean replaceText(String text) {
+        // Once the session has picked up the message, it's too late to change it.
+
+        if (dispatched) {
+            return false;
+        }
+
+        this.text = text;
+
+        return true;
+    }
+
+    public void complete() {
+        if (completed != null) {
+            completed.run();
+        }
+    }
+}
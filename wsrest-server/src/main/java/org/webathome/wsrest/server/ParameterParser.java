@@ -29,17 +29,32 @@ public abstract class ParameterParser {
         }
 
         Class<?> itemType = klass;
+        boolean isList = false;
 
         if (klass != null && klass.isArray()) {
             itemType = klass.getComponentType();
         } else if (type instanceof ParameterizedType) {
+            Type rawType = ((ParameterizedType)type).getRawType();
             Type[] typeArguments = ((ParameterizedType)type).getActualTypeArguments();
 
-            if (typeArguments != null && typeArguments.length == 1) {
-                itemType = typeArguments[0].getClass();
-            } else {
+            if (rawType != ArrayList.class && rawType != List.class && rawType != Collection.class) {
+                throw new WsRestException(String.format("Cannot parse %s", type));
+            }
+            if (typeArguments == null || typeArguments.length != 1 || !(typeArguments[0] instanceof Class<?>)) {
                 throw new WsRestException("Cannot determine parameter type");
             }
+
+            itemType = (Class<?>)typeArguments[0];
+            isList = true;
+        } else if (type == ArrayList.class || type == List.class || type == Collection.class) {
+            // Without a type argument the items are strings.
+
+            itemType = String.class;
+            isList = true;
+        }
+
+        if (itemType == null) {
+            throw new WsRestException(String.format("Cannot parse %s", type));
         }
 
         ItemParser itemParser;
@@ -83,7 +98,7 @@ public abstract class ParameterParser {
         if (klass != null && klass.isArray()) {
             return new ArrayParser(itemParser, itemType);
         }
-        if (type == ArrayList.class || type == List.class || type == Collection.class) {
+        if (isList) {
             return new ArrayListParser(itemParser);
         }
 
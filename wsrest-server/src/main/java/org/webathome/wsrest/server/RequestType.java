@@ -7,5 +7,9 @@ enum RequestType {
     DELETE,
     STREAM,
     MESSAGE,
-    CLOSE
+    CLOSE,
+    WINDOW,
+    CANCEL,
+    RESUME,
+    BATCH
 }
@@ -5,13 +5,21 @@ import org.apache.commons.lang3.Validate;
 class Response {
     private final ResponseType type;
     private final long id;
+    // Optional number in the header. This is the number of messages of a batched MESSAGE, or
+    // the max age of an OK response.
+    private final long argument;
     private final String body;
 
     public Response(ResponseType type, long id, String body) {
+        this(type, id, -1, body);
+    }
+
+    public Response(ResponseType type, long id, long argument, String body) {
         Validate.notNull(type, "type");
 
         this.type = type;
         this.id = id;
+        this.argument = argument;
         this.body = body;
     }
 
@@ -22,6 +30,10 @@ class Response {
             .append(' ')
             .append(id);
 
+        if (argument != -1) {
+            sb.append(' ').append(argument);
+        }
+
         if (body != null) {
             sb.append('\n').append(body);
         }
@@ -5,5 +5,7 @@ enum ResponseType {
     ERROR,
     OPEN,
     CLOSE,
-    MESSAGE
+    MESSAGE,
+    WINDOW,
+    INVALIDATE
 }
@@ -1,15 +1,41 @@
 package org.webathome.wsrest.server;
 
+import java.nio.ByteBuffer;
+
 public interface Stream {
+    // Binary messages are prefixed with the stream ID, which takes this many bytes.
+    int BINARY_HEADER_LENGTH = 8;
+
     void setCallback(Callback callback);
 
+    boolean isWritable();
+
+    // Text messages are collected and sent as a single frame once maxMessages have been
+    // collected or maxDelay milliseconds have passed. A maxMessages of 1 or less disables batching.
+    void setBatchPolicy(int maxMessages, long maxDelay) throws WsRestException;
+
     void sendText(String message) throws WsRestException;
 
+    // Conflating send; a message that's still queued for the same key is replaced.
+    void sendText(String key, String message) throws WsRestException;
+
+    void sendBinary(ByteBuffer message) throws WsRestException;
+
+    void sendBinary(ByteBuffer message, Runnable completed) throws WsRestException;
+
+    // With headroom, the caller has reserved BINARY_HEADER_LENGTH bytes in front of the position
+    // of the message. The header is written into those bytes instead of copying the message.
+    void sendBinary(ByteBuffer message, boolean headroom) throws WsRestException;
+
+    void sendBinary(ByteBuffer message, boolean headroom, Runnable completed) throws WsRestException;
+
     void close() throws WsRestException;
 
     public static interface Callback {
         void onMessage(String message);
 
+        void onBinary(ByteBuffer message);
+
         void onClosed();
 
         void onError(Throwable e);
@@ -1,19 +1,69 @@
 package org.webathome.wsrest.server;
 
+import com.google.gson.Gson;
 import org.apache.commons.lang3.Validate;
 
+import java.nio.ByteBuffer;
+import java.util.*;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
 class StreamImpl implements Stream {
+    // Number of messages either side may send before it has to wait for a WINDOW update.
+    static final int WINDOW_SIZE = 64;
+    // Number of messages we buffer locally when the client hasn't given us credit.
+    static final int MAX_BACKLOG = 1024;
+    // Milliseconds a closed stream waits for its backlog to drain before it's closed anyway.
+    static final long CLOSE_TIMEOUT = 30 * 1000;
+
+    private static final Gson GSON = new Gson();
+
     private final Object syncRoot = new Object();
-    private final BufferedSession session;
+    private BufferedSession session;
     private final long id;
+    private final String token;
     private boolean closed;
+    private boolean closing;
     private Callback callback;
+    private int credit = WINDOW_SIZE;
+    private int consumed;
+    private final Deque<OutboundMessage> backlog = new ArrayDeque<>();
+    private final Map<String, OutboundMessage> conflated = new HashMap<>();
+    private int batchSize = 1;
+    private long batchDelay;
+    private final List<String> batch = new ArrayList<>();
+    private ScheduledFuture<?> batchFlush;
+    // Messages sent to the client are numbered in the order they're handed to the session.
+    // Messages the client hasn't given credit for yet are kept, so they can be sent again when
+    // the client resumes the stream on a new connection.
+    private long sent;
+    private long acked;
+    private final Deque<OutboundMessage> replay = new ArrayDeque<>();
+    private long replayStart;
+    private boolean detached;
+    private int detachCount;
+    private ScheduledFuture<?> expiry;
+    private ScheduledFuture<?> closeTimeout;
 
     public StreamImpl(BufferedSession session, long id) {
         Validate.notNull(session, "session");
 
         this.session = session;
         this.id = id;
+
+        StreamRegistry registry = session.getStreamRegistry();
+        this.token = registry.isEnabled() ? registry.newToken() : null;
+    }
+
+    // Registers the stream so it can be resumed and returns the token the client resumes it with.
+    public String open() {
+        synchronized (syncRoot) {
+            if (token != null && !closed) {
+                session.getStreamRegistry().register(token, this);
+            }
+
+            return token;
+        }
     }
 
     @Override
@@ -35,17 +85,56 @@ class StreamImpl implements Stream {
         }
     }
 
+    @Override
+    public boolean isWritable() {
+        synchronized (syncRoot) {
+            return !closed && !closing && !detached && credit > 0;
+        }
+    }
+
     public long getId() {
         return id;
     }
 
+    @Override
+    public void setBatchPolicy(int maxMessages, long maxDelay) throws WsRestException {
+        Validate.isTrue(maxDelay >= 0, "maxDelay");
+
+        synchronized (syncRoot) {
+            flushBatch();
+
+            batchSize = maxMessages;
+            batchDelay = maxDelay;
+        }
+    }
+
     @Override
     public void sendText(String message) throws WsRestException {
         Validate.notNull(message, "message");
 
         synchronized (syncRoot) {
-            if (closed) {
-                throw new WsRestException("Stream has been closed");
+            if (batchSize > 1) {
+                if (closed || closing) {
+                    throw new WsRestException("Stream has been closed");
+                }
+
+                batch.add(message);
+
+                if (batch.size() >= batchSize) {
+                    flushBatch();
+                } else if (batchFlush == null) {
+                    batchFlush = session.getScheduler().schedule(
+                        new Runnable() {
+                            @Override
+                            public void run() {
+                                onBatchTimeout();
+                            }
+                        },
+                        batchDelay,
+                        TimeUnit.MILLISECONDS
+                    );
+                }
+                return;
             }
 
             Response response = new Response(
@@ -54,15 +143,367 @@ class StreamImpl implements Stream {
                 message
             );
 
-            session.sendText(response.toString());
+            send(new OutboundMessage(id, response.toString()));
+        }
+    }
+
+    private void onBatchTimeout() {
+        synchronized (syncRoot) {
+            if (closed) {
+                return;
+            }
+
+            try {
+                flushBatch();
+            } catch (WsRestException e) {
+                if (callback != null) {
+                    callback.onError(e);
+                }
+            }
+        }
+    }
+
+    private void flushBatch() throws WsRestException {
+        if (batchFlush != null) {
+            batchFlush.cancel(false);
+            batchFlush = null;
+        }
+
+        if (batch.isEmpty()) {
+            return;
+        }
+
+        // A batch goes out as a single MESSAGE frame with the number of messages in the header
+        // and the messages as a JSON array in the body.
+
+        Response response;
+
+        if (batch.size() == 1) {
+            response = new Response(ResponseType.MESSAGE, id, batch.get(0));
+        } else {
+            response = new Response(ResponseType.MESSAGE, id, batch.size(), GSON.toJson(batch));
+        }
+
+        OutboundMessage outboundMessage = new OutboundMessage(id, response.toString(), batch.size());
+
+        batch.clear();
+
+        send(outboundMessage);
+    }
+
+    @Override
+    public void sendText(String key, String message) throws WsRestException {
+        Validate.notNull(key, "key");
+        Validate.notNull(message, "message");
+
+        String text = new Response(
+            ResponseType.MESSAGE,
+            id,
+            message
+        ).toString();
+
+        synchronized (syncRoot) {
+            if (closed || closing) {
+                throw new WsRestException("Stream has been closed");
+            }
+
+            flushBatch();
+
+            // If the last message for this key hasn't been sent yet, we replace it in place. It
+            // already has credit and a spot in the queue, so nothing else needs to happen.
+
+            OutboundMessage pending = conflated.get(key);
+            if (pending != null && pending.replaceText(text)) {
+                return;
+            }
+
+            OutboundMessage outboundMessage = new OutboundMessage(id, text);
+
+            send(outboundMessage);
+
+            conflated.put(key, outboundMessage);
+        }
+    }
+
+    @Override
+    public void sendBinary(ByteBuffer message) throws WsRestException {
+        sendBinary(message, false, null);
+    }
+
+    @Override
+    public void sendBinary(ByteBuffer message, Runnable completed) throws WsRestException {
+        sendBinary(message, false, completed);
+    }
+
+    @Override
+    public void sendBinary(ByteBuffer message, boolean headroom) throws WsRestException {
+        sendBinary(message, headroom, null);
+    }
+
+    @Override
+    public void sendBinary(ByteBuffer message, boolean headroom, Runnable completed) throws WsRestException {
+        Validate.notNull(message, "message");
+        Validate.isTrue(
+            !headroom || (message.position() >= BINARY_HEADER_LENGTH && !message.isReadOnly()),
+            "message has no headroom"
+        );
+
+        synchronized (syncRoot) {
+            flushBatch();
+
+            send(new OutboundMessage(id, createBinaryFrame(message, headroom), completed));
+        }
+    }
+
+    private void send(OutboundMessage message) throws WsRestException {
+        synchronized (syncRoot) {
+            if (closed || closing) {
+                throw new WsRestException("Stream has been closed");
+            }
+
+            if (!detached && credit > 0 && backlog.isEmpty()) {
+                transmit(message);
+            } else if (backlog.size() < MAX_BACKLOG) {
+                backlog.addLast(message);
+            } else {
+                throw new WsRestException("Stream send window exhausted");
+            }
+        }
+    }
+
+    private void transmit(OutboundMessage message) {
+        // A batch may take the credit below zero. The overshoot is bounded by the batch size.
+
+        credit -= message.getCount();
+        sent += message.getCount();
+
+        if (token != null) {
+            replay.addLast(message);
+        }
+
+        session.send(message);
+    }
+
+    private void drain() {
+        while (credit > 0 && !backlog.isEmpty()) {
+            transmit(backlog.removeFirst());
+        }
+
+        if (closing && backlog.isEmpty()) {
+            close(true);
+        }
+    }
+
+    private void trimReplay(long sequence) {
+        while (!replay.isEmpty() && replayStart + replay.getFirst().getCount() <= sequence) {
+            replayStart += replay.removeFirst().getCount();
+        }
+    }
+
+    private ByteBuffer createBinaryFrame(ByteBuffer message, boolean headroom) {
+        ByteBuffer frame;
+
+        // The bytes in front of the position belong to the caller unless they said otherwise.
+
+        if (headroom) {
+            // Write the header into the space the caller reserved in front of the message.
+
+            frame = message.duplicate();
+            frame.position(message.position() - BINARY_HEADER_LENGTH);
+        } else {
+            frame = ByteBuffer.allocate(BINARY_HEADER_LENGTH + message.remaining());
+            frame.position(BINARY_HEADER_LENGTH);
+            frame.put(message.duplicate());
+            frame.flip();
+        }
+
+        frame.putLong(frame.position(), id);
+
+        return frame;
+    }
+
+    public void onWindow(int increment) {
+        synchronized (syncRoot) {
+            if (closed || detached) {
+                return;
+            }
+
+            credit += increment;
+            acked += increment;
+
+            trimReplay(acked);
+
+            drain();
+        }
+    }
+
+    public boolean detach(BufferedSession session, final Throwable e) {
+        synchronized (syncRoot) {
+            if (token == null || closed) {
+                return false;
+            }
+
+            // The client may already have resumed the stream on a new connection.
+
+            if (this.session != session) {
+                return true;
+            }
+
+            detached = true;
+
+            final int detachCount = ++this.detachCount;
+
+            expiry = session.getStreamRegistry().scheduleExpiry(new Runnable() {
+                @Override
+                public void run() {
+                    expire(detachCount, e);
+                }
+            });
+
+            return true;
+        }
+    }
+
+    private void expire(int detachCount, Throwable e) {
+        synchronized (syncRoot) {
+            if (!detached || closed || detachCount != this.detachCount) {
+                return;
+            }
+
+            if (e != null && callback != null) {
+                callback.onError(e);
+            }
+
+            close(false);
+        }
+    }
+
+    // Moves the stream to a new session. The client tells us how many messages it has received
+    // and how many it has given credit for; everything after that is sent again.
+    public void resume(BufferedSession session, long id, long received, long granted) throws WsRestException {
+        Validate.notNull(session, "session");
+
+        synchronized (syncRoot) {
+            if (closed || id != this.id || received > sent || granted > received || granted < acked) {
+                throw new WsRestException("Cannot resume stream", ErrorType.INVALID_REQUEST);
+            }
+
+            trimReplay(received);
+
+            if (replayStart != received) {
+                throw new WsRestException("Cannot resume stream", ErrorType.INVALID_REQUEST);
+            }
+
+            // The application may reuse the buffer of a binary message once it has been sent, so
+            // those can't be sent again.
+
+            for (OutboundMessage message : replay) {
+                if (message.getBinary() != null) {
+                    throw new WsRestException("Cannot resume stream");
+                }
+            }
+
+            Iterator<OutboundMessage> iterator = replay.descendingIterator();
+            while (iterator.hasNext()) {
+                backlog.addFirst(iterator.next());
+            }
+
+            replay.clear();
+
+            sent = received;
+            acked = granted;
+            credit = WINDOW_SIZE - (int)(received - granted);
+            consumed = 0;
+            detached = false;
+
+            if (expiry != null) {
+                expiry.cancel(false);
+                expiry = null;
+            }
+
+            if (this.session != session) {
+                this.session.removeStream(this);
+                this.session = session;
+            }
+
+            session.registerStream(this);
+
+            drain();
+        }
+    }
+
+    public void onConsumed() {
+        synchronized (syncRoot) {
+            if (closed) {
+                return;
+            }
+
+            // Give credit back in batches to limit the number of WINDOW messages.
+
+            if (++consumed >= WINDOW_SIZE / 2) {
+                Response response = new Response(
+                    ResponseType.WINDOW,
+                    id,
+                    String.valueOf(consumed)
+                );
+
+                consumed = 0;
+
+                session.sendText(response.toString());
+            }
         }
     }
 
     @Override
     public void close() throws WsRestException {
+        synchronized (syncRoot) {
+            if (!closed) {
+                flushBatch();
+            }
+
+            // Messages still waiting for credit, or for the client to come back, go out before
+            // the stream is closed.
+
+            if (!closed && (!backlog.isEmpty() || detached)) {
+                if (!closing) {
+                    closing = true;
+
+                    // A client that never gives credit again would keep the stream around forever.
+
+                    closeTimeout = session.getScheduler().schedule(
+                        new Runnable() {
+                            @Override
+                            public void run() {
+                                onCloseTimeout();
+                            }
+                        },
+                        CLOSE_TIMEOUT,
+                        TimeUnit.MILLISECONDS
+                    );
+                }
+                return;
+            }
+        }
+
         close(true);
     }
 
+    private void onCloseTimeout() {
+        synchronized (syncRoot) {
+            if (closed) {
+                return;
+            }
+
+            // The messages in the backlog are dropped, so the application hears about it.
+
+            if (callback != null) {
+                callback.onError(new WsRestException("Stream close timed out"));
+            }
+
+            close(!detached);
+        }
+    }
+
     public void close(boolean sendMessage) {
         synchronized (syncRoot) {
             if (closed) {
@@ -76,13 +517,44 @@ class StreamImpl implements Stream {
                     null
                 );
 
-                session.sendText(response.toString());
+                // The close goes through the stream lane so it stays behind the stream's messages.
+
+                session.send(new OutboundMessage(id, response.toString()));
             }
 
             session.removeStream(this);
 
             closed = true;
 
+            for (OutboundMessage message : backlog) {
+                message.complete();
+            }
+
+            backlog.clear();
+            conflated.clear();
+            replay.clear();
+
+            if (token != null) {
+                session.getStreamRegistry().remove(token, this);
+            }
+
+            if (expiry != null) {
+                expiry.cancel(false);
+                expiry = null;
+            }
+
+            if (batchFlush != null) {
+                batchFlush.cancel(false);
+                batchFlush = null;
+            }
+
+            if (closeTimeout != null) {
+                closeTimeout.cancel(false);
+                closeTimeout = null;
+            }
+
+            batch.clear();
+
             if (callback != null) {
                 callback.onClosed();
             }
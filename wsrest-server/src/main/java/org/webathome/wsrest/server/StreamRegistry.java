@@ -0,0 +1,76 @@
+package org.webathome.wsrest.server;
+
+import org.apache.commons.lang3.Validate;
+
+import java.security.SecureRandom;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+// Keeps track of the streams a client can resume on a new connection, by the token the client
+// got when the stream was opened.
+class StreamRegistry {
+    private final Object syncRoot = new Object();
+    private final Map<String, StreamImpl> streams = new HashMap<>();
+    private final SecureRandom random = new SecureRandom();
+    private final ScheduledExecutorService scheduler;
+    private final long resumeTimeout;
+
+    public StreamRegistry(ScheduledExecutorService scheduler, long resumeTimeout) {
+        Validate.notNull(scheduler, "scheduler");
+
+        this.scheduler = scheduler;
+        this.resumeTimeout = resumeTimeout;
+    }
+
+    public boolean isEnabled() {
+        return resumeTimeout > 0;
+    }
+
+    public String newToken() {
+        byte[] bytes = new byte[16];
+
+        synchronized (random) {
+            random.nextBytes(bytes);
+        }
+
+        StringBuilder sb = new StringBuilder(bytes.length * 2);
+
+        for (byte b : bytes) {
+            sb.append(Character.forDigit((b >> 4) & 0xf, 16));
+            sb.append(Character.forDigit(b & 0xf, 16));
+        }
+
+        return sb.toString();
+    }
+
+    public void register(String token, StreamImpl stream) {
+        Validate.notNull(token, "token");
+        Validate.notNull(stream, "stream");
+
+        synchronized (syncRoot) {
+            streams.put(token, stream);
+        }
+    }
+
+    public StreamImpl get(String token) {
+        synchronized (syncRoot) {
+            return streams.get(token);
+        }
+    }
+
+    public void remove(String token, StreamImpl stream) {
+        synchronized (syncRoot) {
+            if (streams.get(token) == stream) {
+                streams.remove(token);
+            }
+        }
+    }
+
+    // Runs the task when the client hasn't come back within the resume timeout.
+    public ScheduledFuture<?> scheduleExpiry(Runnable task) {
+        return scheduler.schedule(task, resumeTimeout, TimeUnit.MILLISECONDS);
+    }
+}
@@ -0,0 +1,14 @@
+package org.webathome.wsrest.server;
+
+import javax.websocket.SendHandler;
+import java.nio.ByteBuffer;
+
+// Where a session writes its frames to. Only one send is outstanding at a time; the next one
+// starts once the handler has been called.
+interface Transport {
+    void sendText(String text, SendHandler handler);
+
+    void sendBinary(ByteBuffer binary, SendHandler handler);
+
+    void close();
+}
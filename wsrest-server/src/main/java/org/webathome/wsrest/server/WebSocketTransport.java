@@ -0,0 +1,37 @@
+package org.webathome.wsrest.server;
+
+import org.apache.commons.lang3.Validate;
+
+import javax.websocket.SendHandler;
+import javax.websocket.Session;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+class WebSocketTransport implements Transport {
+    private final Session session;
+
+    public WebSocketTransport(Session session) {
+        Validate.notNull(session, "session");
+
+        this.session = session;
+    }
+
+    @Override
+    public void sendText(String text, SendHandler handler) {
+        session.getAsyncRemote().sendText(text, handler);
+    }
+
+    @Override
+    public void sendBinary(ByteBuffer binary, SendHandler handler) {
+        session.getAsyncRemote().sendBinary(binary, handler);
+    }
+
+    @Override
+    public void close() {
+        try {
+            session.close();
+        } catch (IOException e) {
+            // LOG.warn("Could not close existing session", e);
+        }
+    }
+}
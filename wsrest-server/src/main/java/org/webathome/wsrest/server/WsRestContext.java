@@ -1,23 +1,36 @@
 package org.webathome.wsrest.server;
 
+import com.google.gson.Gson;
+import com.google.gson.JsonParseException;
+import org.apache.commons.lang3.StringUtils;
 import org.apache.commons.lang3.Validate;
 
 import java.io.IOException;
 import java.io.PrintWriter;
 import java.io.StringWriter;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
 
 public class WsRestContext {
     private static final int DEFAULT_THREAD_COUNT = 5;
+    private static final Gson GSON = new Gson();
 
     private final List<EndpointDescription> endpoints = new ArrayList<>();
     private final ExecutorService threadPool;
+    private final ScheduledExecutorService scheduler;
     private final RequestContextFactory requestContextFactory;
+    private final StreamRegistry streamRegistry;
+    private final Set<BufferedSession> sessions = new HashSet<>();
 
-    private WsRestContext(List<Class<?>> services, ExecutorService threadPool, RequestContextFactory requestContextFactory) throws WsRestException {
+    private WsRestContext(List<Class<?>> services, ExecutorService threadPool, ScheduledExecutorService scheduler, RequestContextFactory requestContextFactory, long resumeTimeout) throws WsRestException {
         for (Class<?> service : services) {
             endpoints.add(new EndpointDescription(service));
         }
@@ -26,22 +39,199 @@ public class WsRestContext {
             threadPool = Executors.newFixedThreadPool(DEFAULT_THREAD_COUNT);
         }
 
+        if (scheduler == null) {
+            scheduler = Executors.newSingleThreadScheduledExecutor();
+        }
+
         this.threadPool = threadPool;
+        this.scheduler = scheduler;
         this.requestContextFactory = requestContextFactory;
+        this.streamRegistry = new StreamRegistry(scheduler, resumeTimeout);
     }
 
     RequestContextFactory getRequestContextFactory() {
         return requestContextFactory;
     }
 
-    void execute(final String message, final BufferedSession session) {
+    ScheduledExecutorService getScheduler() {
+        return scheduler;
+    }
+
+    StreamRegistry getStreamRegistry() {
+        return streamRegistry;
+    }
+
+    void addSession(BufferedSession session) {
+        synchronized (sessions) {
+            sessions.add(session);
+        }
+    }
+
+    void removeSession(BufferedSession session) {
+        synchronized (sessions) {
+            sessions.remove(session);
+        }
+    }
+
+    public int getSessionCount() {
+        synchronized (sessions) {
+            return sessions.size();
+        }
+    }
+
+    // Number of requests waiting for a thread of the pool. Returns -1 when the pool doesn't
+    // expose its queue.
+    public int getQueuedRequestCount() {
+        if (threadPool instanceof ThreadPoolExecutor) {
+            return ((ThreadPoolExecutor)threadPool).getQueue().size();
+        }
+
+        return -1;
+    }
+
+    // Number of frames waiting to be sent, over all sessions.
+    public int getQueuedFrameCount() {
+        List<BufferedSession> sessions;
+
+        synchronized (this.sessions) {
+            sessions = new ArrayList<>(this.sessions);
+        }
+
+        int count = 0;
+
+        for (BufferedSession session : sessions) {
+            count += session.getQueuedCount();
+        }
+
+        return count;
+    }
+
+    // Tells all connected clients to drop cached responses for the path and everything below it.
+    public void invalidate(String path) {
+        Validate.notNull(path, "path");
+
+        List<BufferedSession> sessions;
+
+        synchronized (this.sessions) {
+            sessions = new ArrayList<>(this.sessions);
+        }
+
+        String text = new Response(ResponseType.INVALIDATE, 0, path).toString();
+
+        for (BufferedSession session : sessions) {
+            session.sendText(text);
+        }
+    }
+
+    void execute(String message, final BufferedSession session) {
+        Validate.notNull(message, "message");
+        Validate.notNull(session, "session");
+
+        final Request request;
+
+        try {
+            request = Request.parse(message);
+        } catch (WsRestException e) {
+            session.sendText(createErrorResponse(-1, e).toString());
+            return;
+        }
+
+        switch (request.getType()) {
+            case BATCH:
+                executeBatch(request, session);
+                break;
+
+            case WINDOW:
+            case CANCEL:
+            case RESUME:
+                // Control messages are handled on the receiving thread so they don't queue up
+                // behind requests in the thread pool.
+
+                Response response = executeAsync(request, session);
+
+                if (response != null) {
+                    session.sendText(response.toString());
+                }
+                break;
+
+            case MESSAGE:
+            case CLOSE:
+                threadPool.submit(new Runnable() {
+                    @Override
+                    public void run() {
+                        Response response = executeAsync(request, session);
+
+                        if (response != null) {
+                            session.sendText(response.toString());
+                        }
+                    }
+                });
+                break;
+
+            default:
+                // Requests are tracked until they complete so the client can cancel them.
+
+                FutureTask<Void> task = new FutureTask<Void>(
+                    new Runnable() {
+                        @Override
+                        public void run() {
+                            Response response = executeAsync(request, session);
+
+                            if (response != null) {
+                                session.sendText(response.toString());
+                            }
+                        }
+                    },
+                    null
+                ) {
+                    @Override
+                    protected void done() {
+                        session.removeRequest(request.getId(), this);
+                    }
+                };
+
+                session.registerRequest(request.getId(), task);
+
+                threadPool.execute(task);
+                break;
+        }
+    }
+
+    private void executeBatch(Request request, BufferedSession session) {
+        // A batch has the number of frames as its ID and the frames as a JSON array in the body.
+        // The frames are dispatched in order, as if they had come in one by one.
+
+        String[] frames;
+
+        try {
+            frames = GSON.fromJson(request.getBody(), String[].class);
+        } catch (JsonParseException e) {
+            frames = null;
+        }
+
+        if (frames == null || frames.length != request.getId()) {
+            session.sendText(createErrorResponse(-1, new WsRestException("Invalid batch", ErrorType.INVALID_REQUEST)).toString());
+            return;
+        }
+
+        for (String frame : frames) {
+            if (frame == null) {
+                session.sendText(createErrorResponse(-1, new WsRestException("Invalid batch", ErrorType.INVALID_REQUEST)).toString());
+                continue;
+            }
+
+            execute(frame, session);
+        }
+    }
+
+    void execute(final ByteBuffer message, final BufferedSession session) {
         Validate.notNull(message, "message");
         Validate.notNull(session, "session");
 
         threadPool.submit(new Runnable() {
             @Override
             public void run() {
-                Response response = executeAsync(message, session);
+                Response response = executeBinaryAsync(message, session);
 
                 if (response != null) {
                     session.sendText(response.toString());
@@ -50,61 +240,141 @@ public class WsRestContext {
         });
     }
 
-    private Response executeAsync(String message, BufferedSession session) {
-        long id = -1;
-
+    private Response executeAsync(Request request, BufferedSession session) {
         try {
-            Request request = Request.parse(message);
-            id = request.getId();
-
             switch (request.getType()) {
                 case MESSAGE:
                 case CLOSE:
+                case WINDOW:
                     return executeStreamMessage(request, session);
 
+                case CANCEL:
+                    session.cancelRequest(request.getId());
+                    return null;
+
+                case RESUME:
+                    return resumeStream(request, session);
+
                 default:
                     return executeNormalMessage(request, session);
             }
         } catch (Throwable e) {
-            String error;
-
-            try (
-                StringWriter sw = new StringWriter();
-                PrintWriter pw = new PrintWriter(sw)
-            ) {
-                e.printStackTrace(pw);
-                error = sw.toString();
-            } catch (IOException e1) {
-                throw new RuntimeException(e1);
-            }
-
-            return new Response(
-                ResponseType.ERROR,
-                id,
-                error
-            );
+            return createErrorResponse(request.getId(), e);
         }
     }
 
-    private Response executeStreamMessage(Request request, BufferedSession session) throws WsRestException {
-        StreamImpl stream = session.getStream(request.getId());
+    private Response executeBinaryAsync(ByteBuffer message, BufferedSession session) {
+        long id = -1;
+
+        try {
+            if (message.remaining() < Stream.BINARY_HEADER_LENGTH) {
+                throw new WsRestException("Invalid request", ErrorType.INVALID_REQUEST);
+            }
+
+            id = message.getLong();
 
-        if (request.getType() == RequestType.MESSAGE) {
+            StreamImpl stream = session.getStream(id);
             if (stream == null) {
                 throw new WsRestException("Cannot find stream");
             }
 
             Stream.Callback callback = stream.getCallback();
             if (callback != null) {
-                callback.onMessage(request.getBody());
+                callback.onBinary(message.slice());
             }
-        } else if (stream != null) {
-            stream.close(false);
+
+            stream.onConsumed();
+
+            return null;
+        } catch (Throwable e) {
+            return createErrorResponse(id, e);
+        }
+    }
+
+    private Response createErrorResponse(long id, Throwable e) {
+        String error;
+
+        try (
+            StringWriter sw = new StringWriter();
+            PrintWriter pw = new PrintWriter(sw)
+        ) {
+            e.printStackTrace(pw);
+            error = sw.toString();
+        } catch (IOException e1) {
+            throw new RuntimeException(e1);
+        }
+
+        return new Response(
+            ResponseType.ERROR,
+            id,
+            error
+        );
+    }
+
+    private Response executeStreamMessage(Request request, BufferedSession session) throws WsRestException {
+        StreamImpl stream = session.getStream(request.getId());
+
+        switch (request.getType()) {
+            case MESSAGE:
+                if (stream == null) {
+                    throw new WsRestException("Cannot find stream");
+                }
+
+                Stream.Callback callback = stream.getCallback();
+                if (callback != null) {
+                    callback.onMessage(request.getBody());
+                }
+
+                stream.onConsumed();
+                break;
+
+            case WINDOW:
+                if (stream != null) {
+                    try {
+                        stream.onWindow(Integer.parseInt(request.getBody()));
+                    } catch (NumberFormatException e) {
+                        throw new WsRestException("Invalid window", ErrorType.INVALID_REQUEST);
+                    }
+                }
+                break;
+
+            default:
+                if (stream != null) {
+                    stream.close(false);
+                }
+                break;
         }
 
         return null;
     }
 
+    private Response resumeStream(Request request, BufferedSession session) throws WsRestException {
+        // The body has the token of the stream, the number of messages the client has received
+        // and the number of messages it has given credit for.
+
+        String[] parts = StringUtils.split(StringUtils.defaultString(request.getBody()), ' ');
+        if (parts.length != 3) {
+            throw new WsRestException("Invalid request", ErrorType.INVALID_REQUEST);
+        }
+
+        StreamImpl stream = streamRegistry.get(parts[0]);
+        if (stream == null) {
+            throw new WsRestException("Cannot find stream", ErrorType.NOT_FOUND);
+        }
+
+        try {
+            stream.resume(session, request.getId(), Long.parseLong(parts[1]), Long.parseLong(parts[2]));
+        } catch (NumberFormatException e) {
+            throw new WsRestException("Invalid request", ErrorType.INVALID_REQUEST);
+        }
+
+        return new Response(
+            ResponseType.OPEN,
+            request.getId(),
+            parts[0]
+        );
+    }
+
     private Response executeNormalMessage(Request request, BufferedSession session) throws WsRestException {
         for (EndpointDescription endpoint : endpoints) {
             if (request.getPath().startsWith(endpoint.getPath())) {
@@ -118,7 +388,9 @@ public class WsRestContext {
     public static class Builder {
         private final List<Class<?>> services = new ArrayList<>();
         private ExecutorService threadPool;
+        private ScheduledExecutorService scheduler;
         private RequestContextFactory requestContextFactory;
+        private long resumeTimeout;
 
         public Builder addService(Class<?> service) {
             Validate.notNull(service, "service");
@@ -133,13 +405,27 @@ public class WsRestContext {
             return this;
         }
 
+        public Builder setScheduler(ScheduledExecutorService scheduler) {
+            this.scheduler = scheduler;
+            return this;
+        }
+
         public Builder setRequestContextFactory(RequestContextFactory requestContextFactory) {
             this.requestContextFactory = requestContextFactory;
             return this;
         }
 
+        // Streams of a client that lost its connection are kept for this many milliseconds, so
+        // the client can resume them on a new connection. Zero disables resuming streams.
+        public Builder setResumeTimeout(long resumeTimeout) {
+            Validate.isTrue(resumeTimeout >= 0, "resumeTimeout");
+
+            this.resumeTimeout = resumeTimeout;
+            return this;
+        }
+
         public WsRestContext build() throws WsRestException {
-            return new WsRestContext(services, threadPool, requestContextFactory);
+            return new WsRestContext(services, threadPool, scheduler, requestContextFactory, resumeTimeout);
         }
     }
 }
@@ -0,0 +1,10 @@
+package org.webathome.wsrest.server.annotations;
+
+import java.lang.annotation.*;
+
+// Number of milliseconds clients may cache the response of a GET method.
+@Target({ElementType.METHOD})
+@Retention(RetentionPolicy.RUNTIME)
+public @interface MaxAge {
+    long value();
+}
@@ -1,11 +1,55 @@
 package org.webathome.wsrest.test;
 
+import org.webathome.wsrest.server.annotations.MaxAge;
+
 import javax.ws.rs.*;
 import javax.ws.rs.core.MediaType;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
 
 @SuppressWarnings("UnusedDeclaration")
 @Path("/rest")
 public class EchoApi {
+    private static final ConcurrentMap<String, CountDownLatch> slowStarted = new ConcurrentHashMap<>();
+    private static final ConcurrentMap<String, CountDownLatch> slowInterrupted = new ConcurrentHashMap<>();
+    private static final AtomicInteger counter = new AtomicInteger();
+
+    // Returns a latch that's released when a slow request with the tag has reached the server.
+    public static CountDownLatch expectSlowStarted(String tag) {
+        CountDownLatch latch = new CountDownLatch(1);
+        slowStarted.put(tag, latch);
+        return latch;
+    }
+
+    // Returns a latch that's released when a slow request with the tag is interrupted. Slow
+    // requests of other tests can't release it.
+    public static CountDownLatch expectSlowInterrupted(String tag) {
+        CountDownLatch latch = new CountDownLatch(1);
+        slowInterrupted.put(tag, latch);
+        return latch;
+    }
+
+    @GET
+    @Path("/counter")
+    @MaxAge(60 * 1000)
+    @Produces(MediaType.TEXT_PLAIN)
+    public String counter() {
+        return String.valueOf(counter.incrementAndGet());
+    }
+
+    @GET
+    @Path("/slow-counter")
+    @Produces(MediaType.TEXT_PLAIN)
+    public String slowCounter(
+        @QueryParam("delay") int delay
+    ) throws InterruptedException {
+        Thread.sleep(delay);
+
+        return String.valueOf(counter.incrementAndGet());
+    }
+
     @GET
     @Path("/simple-ok")
     @Produces(MediaType.TEXT_PLAIN)
@@ -57,4 +101,38 @@ public class EchoApi {
     ) {
         return "PATH " + value;
     }
+
+    @GET
+    @Path("/slow")
+    @Produces(MediaType.TEXT_PLAIN)
+    public String slow(
+        @QueryParam("delay") int delay,
+        @QueryParam("tag") String tag
+    ) {
+        CountDownLatch started = tag != null ? slowStarted.remove(tag) : null;
+        if (started != null) {
+            started.countDown();
+        }
+
+        try {
+            Thread.sleep(delay);
+        } catch (InterruptedException e) {
+            CountDownLatch latch = tag != null ? slowInterrupted.remove(tag) : null;
+            if (latch != null) {
+                latch.countDown();
+            }
+        }
+
+        return "OK";
+    }
+
+    @POST
+    @Path("/slow")
+    @Produces(MediaType.TEXT_PLAIN)
+    public String slowPost(
+        @QueryParam("delay") int delay,
+        @QueryParam("tag") String tag
+    ) {
+        return slow(delay, tag);
+    }
 }
@@ -0,0 +1,50 @@
+package org.webathome.wsrest.test;
+
+import org.webathome.wsrest.client.ResponseFuture;
+import org.webathome.wsrest.client.WsRestException;
+
+import javax.ws.rs.*;
+import javax.ws.rs.core.MediaType;
+
+@Path("/rest")
+public interface EchoClient {
+    @GET
+    @Path("/echo")
+    String echoGetQuery(
+        @QueryParam("value") String value
+    ) throws WsRestException;
+
+    @POST
+    @Path("/echo")
+    String echoPostForm(
+        @FormParam("value") String value
+    ) throws WsRestException;
+
+    @GET
+    @Path("/echo/{value}")
+    String echoPath(
+        @PathParam("value") String value
+    ) throws WsRestException;
+
+    @DELETE
+    @Path("/echo")
+    ResponseFuture<String> echoDeleteQuery(
+        @QueryParam("value") String value
+    );
+
+    // The echo is plain text, so it doesn't parse as JSON.
+
+    @GET
+    @Path("/echo")
+    @Produces(MediaType.APPLICATION_JSON)
+    TestObject echoGetJson(
+        @QueryParam("value") String value
+    ) throws WsRestException;
+
+    @GET
+    @Path("/echo")
+    @Produces(MediaType.APPLICATION_JSON)
+    ResponseFuture<TestObject> echoGetJsonAsync(
+        @QueryParam("value") String value
+    );
+}
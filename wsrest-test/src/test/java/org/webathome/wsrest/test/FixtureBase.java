@@ -5,17 +5,24 @@ import org.junit.After;
 import org.junit.AfterClass;
 import org.junit.BeforeClass;
 import org.webathome.wsrest.client.Connection;
+import org.webathome.wsrest.client.ConnectionPool;
+import org.webathome.wsrest.client.WebSocketFactory;
 import org.webathome.wsrest.test.support.WebServer;
 
 public abstract class FixtureBase {
     private static WebServer server;
     private static AndroidWebSocketFactory webSocketFactory = new AndroidWebSocketFactory();
     private Connection connection;
+    private ConnectionPool connectionPool;
 
     protected int getPort() {
         return server.getPort();
     }
 
+    protected WebSocketFactory getWebSocketFactory() {
+        return webSocketFactory;
+    }
+
     @BeforeClass
     public static void beforeClass() throws Exception {
         server = new WebServer()
@@ -49,11 +56,27 @@ public abstract class FixtureBase {
         return connection;
     }
 
+    protected ConnectionPool openConnectionPool(int size) {
+        if (connectionPool == null) {
+            connectionPool = new ConnectionPool(
+                String.format("ws://localhost:%d/ws", server.getPort()),
+                size,
+                webSocketFactory
+            );
+        }
+
+        return connectionPool;
+    }
+
     @After
     public void afterTest() {
         if (connection != null) {
             connection.close();
             connection = null;
         }
+        if (connectionPool != null) {
+            connectionPool.close();
+            connectionPool = null;
+        }
     }
 }
@@ -0,0 +1,57 @@
+package org.webathome.wsrest.test;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+import org.webathome.wsrest.test.support.LatencyHistogram;
+import org.webathome.wsrest.test.support.LoadGenerator;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+@RunWith(JUnit4.class)
+public class LoadFixture extends FixtureBase {
+    @Test
+    public void latencyHistogram() {
+        LatencyHistogram histogram = new LatencyHistogram();
+
+        for (int i = 1; i <= 100000; i++) {
+            histogram.record(i);
+        }
+
+        assertEquals(100000, histogram.getTotalCount());
+        assertEquals(100000, histogram.getMax());
+        assertEquals(50000, histogram.getValueAtPercentile(50), 50000 / 1000);
+        assertEquals(99000, histogram.getValueAtPercentile(99), 99000 / 1000);
+        assertEquals(99900, histogram.getValueAtPercentile(99.9), 99900 / 1000);
+        assertEquals(100000, histogram.getValueAtPercentile(100));
+    }
+
+    @Test
+    public void shortRun() throws Exception {
+        LoadGenerator.Report report = new LoadGenerator(
+            String.format("ws://localhost:%d/ws", getPort()),
+            getWebSocketFactory()
+        )
+            .setConnectionCount(10)
+            .setStreamCount(2)
+            .setRequestRate(500)
+            .setMessageRate(100)
+            .setDuration(1, TimeUnit.SECONDS)
+            .setContext(WsEndpoint.getContext())
+            .run();
+
+        assertTrue(report.getRequestsSent() > 0);
+        assertEquals(0, report.getRequestErrors());
+        assertEquals(report.getRequestsSent(), report.getRequestsCompleted());
+        assertEquals(report.getRequestsSent(), report.getRequestLatency().getTotalCount());
+
+        assertTrue(report.getMessagesSent() > 0);
+        assertEquals(0, report.getMessageErrors());
+        assertEquals(report.getMessagesSent(), report.getMessagesReceived());
+
+        assertTrue(report.getMaxQueuedRequests() >= 0);
+        assertTrue(report.getMaxQueuedFrames() >= 0);
+    }
+}
@@ -0,0 +1,41 @@
+package org.webathome.wsrest.test;
+
+import org.eclipse.jetty.websocket.JettyWebSocketFactory;
+import org.webathome.wsrest.test.support.LoadGenerator;
+import org.webathome.wsrest.test.support.WebServer;
+
+import java.util.concurrent.TimeUnit;
+
+// Runs the load generator against the embedded server and prints the report. The load is set
+// with system properties, e.g. -Dconnections=2000 -DrequestRate=20000 -Dstreams=200
+// -DmessageRate=10000 -Dduration=30. Thousands of connections need a raised open file limit.
+public class LoadRunner {
+    public static void main(String[] args) throws Exception {
+        try (WebServer server = new WebServer().registerWebSocketEndpoint(WsEndpoint.class).start()) {
+            JettyWebSocketFactory webSocketFactory = new JettyWebSocketFactory();
+
+            try {
+                LoadGenerator.Report report = new LoadGenerator(
+                    String.format("ws://localhost:%d/ws", server.getPort()),
+                    webSocketFactory
+                )
+                    .setConnectionCount(Integer.getInteger("connections", 1000))
+                    .setStreamCount(Integer.getInteger("streams", 100))
+                    .setRequestRate(Double.parseDouble(System.getProperty("requestRate", "10000")))
+                    .setMessageRate(Double.parseDouble(System.getProperty("messageRate", "5000")))
+                    .setDuration(Integer.getInteger("duration", 30), TimeUnit.SECONDS)
+                    .setContext(WsEndpoint.getContext())
+                    .setOut(System.out)
+                    .run();
+
+                report.print(System.out);
+            } finally {
+                webSocketFactory.close();
+            }
+        }
+
+        // The thread pool of the server context keeps the process alive.
+
+        System.exit(0);
+    }
+}
@@ -0,0 +1,199 @@
+package org.webathome.wsrest.test;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+import org.webathome.wsrest.common.ConcurrentLongHashMap;
+import org.webathome.wsrest.common.LongHashMap;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+@RunWith(JUnit4.class)
+public class LongHashMapFixture {
+    // A map created with this capacity has a table of 16 slots.
+    private static final int CAPACITY = 8;
+    private static final int TABLE_LENGTH = 16;
+
+    @Test
+    public void removeFromWrappedCluster() {
+        // Three keys want the last slot and one wants the first, so the cluster wraps around to
+        // the start of the table. Removing any of them must leave the others reachable.
+
+        long[] keys = new long[4];
+        keys[0] = findKey(TABLE_LENGTH - 1, 0);
+        keys[1] = findKey(TABLE_LENGTH - 1, keys[0] + 1);
+        keys[2] = findKey(TABLE_LENGTH - 1, keys[1] + 1);
+        keys[3] = findKey(0, 0);
+
+        for (int removed = 0; removed < keys.length; removed++) {
+            LongHashMap<String> map = new LongHashMap<>(CAPACITY);
+
+            for (long key : keys) {
+                map.put(key, String.valueOf(key));
+            }
+
+            assertEquals(String.valueOf(keys[removed]), map.remove(keys[removed]));
+            assertEquals(keys.length - 1, map.size());
+
+            for (int i = 0; i < keys.length; i++) {
+                if (i == removed) {
+                    assertNull(map.get(keys[i]));
+                } else {
+                    assertEquals(String.valueOf(keys[i]), map.get(keys[i]));
+                }
+            }
+
+            // The table must be consistent enough to remove the rest as well.
+
+            for (int i = 0; i < keys.length; i++) {
+                if (i != removed) {
+                    assertEquals(String.valueOf(keys[i]), map.remove(keys[i]));
+                }
+            }
+
+            assertTrue(map.isEmpty());
+        }
+    }
+
+    @Test
+    public void removeOnlyMatchingValue() {
+        LongHashMap<String> map = new LongHashMap<>();
+
+        String value = "a";
+        map.put(1, value);
+
+        assertFalse(map.remove(1, new String("a")));
+        assertEquals(1, map.size());
+        assertTrue(map.remove(1, value));
+        assertTrue(map.isEmpty());
+    }
+
+    @Test
+    public void resizeUnderLoad() {
+        // Puts and removes are mixed, so the table resizes while it has shifted entries in it.
+
+        LongHashMap<Long> map = new LongHashMap<>();
+        Map<Long, Long> expected = new HashMap<>();
+        Random random = new Random(42);
+
+        for (int i = 0; i < 20000; i++) {
+            long key = random.nextInt(8) == 0 ? random.nextLong() : random.nextInt(5000) - 1000;
+
+            if (random.nextInt(3) == 0) {
+                assertEquals(expected.remove(key), map.remove(key));
+            } else {
+                assertEquals(expected.put(key, (long)i), map.put(key, (long)i));
+            }
+
+            assertEquals(expected.size(), map.size());
+        }
+
+        for (Map.Entry<Long, Long> entry : expected.entrySet()) {
+            assertEquals(entry.getValue(), map.get(entry.getKey()));
+        }
+
+        assertEquals(new HashSet<>(expected.values()), new HashSet<>(map.values()));
+
+        map.clear();
+
+        assertTrue(map.isEmpty());
+        assertNull(map.get(expected.keySet().iterator().next()));
+    }
+
+    @Test
+    public void concurrentPutRemove() throws Throwable {
+        // Every thread works on its own keys, which are spread over all stripes. Each thread
+        // removes half of what it put, so the map ends up with exactly the other half.
+
+        final int threadCount = 8;
+        final int keysPerThread = 5000;
+        final ConcurrentLongHashMap<Long> map = new ConcurrentLongHashMap<>();
+        final CountDownLatch start = new CountDownLatch(1);
+        final AtomicReference<Throwable> error = new AtomicReference<>();
+        List<Thread> threads = new ArrayList<>();
+
+        for (int i = 0; i < threadCount; i++) {
+            final int thread = i;
+
+            threads.add(new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+
+                        for (int j = 0; j < keysPerThread; j++) {
+                            long key = (long)j * threadCount + thread;
+
+                            assertNull(map.put(key, key));
+
+                            if (j % 2 == 1) {
+                                assertEquals((Long)key, map.remove(key));
+                                assertNull(map.get(key));
+                            }
+                        }
+                    } catch (Throwable e) {
+                        error.compareAndSet(null, e);
+                    }
+                }
+            }));
+        }
+
+        for (Thread thread : threads) {
+            thread.start();
+        }
+
+        start.countDown();
+
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        if (error.get() != null) {
+            throw error.get();
+        }
+
+        int remaining = threadCount * keysPerThread / 2;
+
+        assertEquals(remaining, map.size());
+
+        List<Long> values = map.values();
+        Collections.sort(values);
+
+        assertEquals(remaining, values.size());
+
+        for (int i = 0; i < remaining; i++) {
+            long key = (long)(i / threadCount) * 2 * threadCount + i % threadCount;
+
+            assertEquals((Long)key, values.get(i));
+            assertEquals((Long)key, map.get(key));
+        }
+
+        map.clear();
+
+        assertTrue(map.isEmpty());
+        assertTrue(map.values().isEmpty());
+    }
+
+    private static long findKey(int slot, long from) {
+        long key = from;
+
+        while ((LongHashMap.hash(key) & (TABLE_LENGTH - 1)) != slot) {
+            key++;
+        }
+
+        return key;
+    }
+}
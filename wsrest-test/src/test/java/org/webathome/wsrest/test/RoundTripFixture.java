@@ -3,11 +3,23 @@ package org.webathome.wsrest.test;
 import org.junit.Test;
 import org.junit.runner.RunWith;
 import org.junit.runners.JUnit4;
-import org.webathome.wsrest.client.WsRestException;
-import org.webathome.wsrest.client.RequestType;
+import org.webathome.wsrest.client.*;
+import org.webathome.wsrest.loopback.LoopbackWebSocketFactory;
+import org.webathome.wsrest.test.support.RecordingWebSocketFactory;
 import org.webathome.wsrest.test.support.WebUtil;
 
-import static org.junit.Assert.assertEquals;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
 
 @RunWith(JUnit4.class)
 public class RoundTripFixture extends FixtureBase {
@@ -79,4 +91,559 @@ public class RoundTripFixture extends FixtureBase {
                 .getText()
         );
     }
+
+    @Test
+    public void requestTimeout() throws WsRestException, InterruptedException {
+        CountDownLatch interrupted = EchoApi.expectSlowInterrupted("request-timeout");
+
+        try {
+            openConnection()
+                .newRequest("/rest/slow", RequestType.GET)
+                .addQueryParam("delay", 5000)
+                .addQueryParam("tag", "request-timeout")
+                .setTimeout(200)
+                .getText();
+
+            fail();
+        } catch (WsRestException e) {
+            // Expected.
+        }
+
+        // The server is told to cancel the request.
+
+        assertTrue(interrupted.await(5, TimeUnit.SECONDS));
+
+        // The connection can still be used after a timeout.
+
+        assertEquals("OK", openConnection().newRequest("/rest/simple-ok", RequestType.GET).getText());
+    }
+
+    @Test
+    public void timeoutCallbackThread() throws Exception {
+        final CountDownLatch timedOut = new CountDownLatch(1);
+        final Value<String> threadName = new Value<>(null);
+
+        openConnection()
+            .newRequest("/rest/slow", RequestType.GET)
+            .addQueryParam("delay", 1000)
+            .setTimeout(100)
+            .getText(new Callback<String>() {
+                @Override
+                public void call(String value, Throwable e) {
+                    threadName.set(Thread.currentThread().getName());
+                    timedOut.countDown();
+                }
+            });
+
+        assertTrue(timedOut.await(5, TimeUnit.SECONDS));
+
+        // The scheduler thread is shared by all connections and must not run callbacks.
+
+        assertFalse("WsRest scheduler".equals(threadName.get()));
+    }
+
+    @Test
+    public void customExecutor() throws Exception {
+        final CountDownLatch reported = new CountDownLatch(1);
+
+        ExecutorService executor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "Test executor");
+                thread.setUncaughtExceptionHandler(new Thread.UncaughtExceptionHandler() {
+                    @Override
+                    public void uncaughtException(Thread thread, Throwable e) {
+                        reported.countDown();
+                    }
+                });
+                return thread;
+            }
+        });
+
+        try {
+            Connection connection = openConnection();
+            connection.setExecutor(executor);
+
+            final CountDownLatch called = new CountDownLatch(1);
+            final Value<String> threadName = new Value<>(null);
+
+            connection.newRequest("/rest/simple-ok", RequestType.GET).getText(new Callback<String>() {
+                @Override
+                public void call(String value, Throwable e) {
+                    threadName.set(Thread.currentThread().getName());
+                    called.countDown();
+
+                    throw new IllegalStateException("Callback failed");
+                }
+            });
+
+            // Callbacks run on the executor, and an exception thrown by one is reported to the
+            // thread instead of being dropped.
+
+            assertTrue(called.await(5, TimeUnit.SECONDS));
+            assertEquals("Test executor", threadName.get());
+            assertTrue(reported.await(5, TimeUnit.SECONDS));
+
+            assertEquals("OK", connection.newRequest("/rest/simple-ok", RequestType.GET).getText());
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void callbackWithoutLock() throws Exception {
+        final Connection connection = openConnection();
+        final CountDownLatch done = new CountDownLatch(1);
+        final Value<Boolean> unlocked = new Value<>(false);
+
+        connection.newRequest("/rest/simple-ok", RequestType.GET).getText(new Callback<String>() {
+            @Override
+            public void call(String value, Throwable e) {
+                // Another thread can use the connection while the callback runs.
+
+                Thread other = new Thread() {
+                    @Override
+                    public void run() {
+                        connection.isWritable();
+                    }
+                };
+
+                other.start();
+
+                try {
+                    other.join(5000);
+                } catch (InterruptedException e1) {
+                    // The assert below fails.
+                }
+
+                unlocked.set(!other.isAlive());
+                done.countDown();
+            }
+        });
+
+        assertTrue(done.await(10, TimeUnit.SECONDS));
+        assertTrue(unlocked.get());
+    }
+
+    @Test
+    public void asyncGet() throws Exception {
+        assertEquals(
+            "GET OK",
+            openConnection()
+                .newRequest("/rest/echo", RequestType.GET)
+                .addQueryParam("value", "OK")
+                .getTextAsync()
+                .get()
+        );
+    }
+
+    @Test
+    public void executeAll() throws Exception {
+        Connection connection = openConnection();
+
+        List<String> responses = connection.executeAll(
+            connection.newRequest("/rest/echo", RequestType.GET).addQueryParam("value", "1"),
+            connection.newRequest("/rest/echo", RequestType.POST).addFormParam("value", "2"),
+            connection.newRequest("/rest/echo/{value}", RequestType.GET).addPathParam("value", "3")
+        ).get();
+
+        assertEquals(Arrays.asList("GET 1", "POST 2", "PATH 3"), responses);
+    }
+
+    @Test
+    public void connectionPool() throws Exception {
+        ConnectionPool pool = openConnectionPool(4);
+
+        // Slow requests keep their connections busy, so they each end up on their own.
+
+        List<ResponseFuture<String>> futures = new ArrayList<>();
+        List<Connection> connections = new ArrayList<>();
+
+        for (int i = 0; i < pool.getSize(); i++) {
+            Connection connection = pool.getConnection();
+            assertFalse(connections.contains(connection));
+            connections.add(connection);
+
+            futures.add(
+                connection
+                    .newRequest("/rest/slow", RequestType.GET)
+                    .addQueryParam("delay", 200)
+                    .getTextAsync()
+            );
+        }
+
+        assertEquals("GET OK", pool.newRequest("/rest/echo", RequestType.GET).addQueryParam("value", "OK").getText());
+
+        for (ResponseFuture<String> future : futures) {
+            assertEquals("OK", future.get());
+        }
+    }
+
+    @Test
+    public void reconnect() throws Exception {
+        RecordingWebSocketFactory factory = new RecordingWebSocketFactory(getWebSocketFactory());
+        Connection connection = new Connection(String.format("ws://localhost:%d/ws", getPort()), factory);
+
+        try {
+            connection.setReconnectPolicy(new ReconnectPolicy(50, 1000, 100));
+
+            CountDownLatch started = EchoApi.expectSlowStarted("reconnect");
+
+            ResponseFuture<String> get = connection
+                .newRequest("/rest/slow", RequestType.GET)
+                .addQueryParam("delay", 300)
+                .addQueryParam("tag", "reconnect")
+                .getTextAsync();
+
+            assertTrue(started.await(5, TimeUnit.SECONDS));
+
+            // Drop the connection while the request is running.
+
+            factory.get(0).close();
+
+            // The GET is sent again on a new connection.
+
+            assertEquals("OK", get.get(5, TimeUnit.SECONDS));
+            assertEquals(2, factory.size());
+        } finally {
+            connection.close();
+        }
+    }
+
+    @Test
+    public void reconnectFailsPost() throws Exception {
+        RecordingWebSocketFactory factory = new RecordingWebSocketFactory(getWebSocketFactory());
+        Connection connection = new Connection(String.format("ws://localhost:%d/ws", getPort()), factory);
+
+        try {
+            connection.setReconnectPolicy(new ReconnectPolicy(50, 1000, 100));
+
+            CountDownLatch started = EchoApi.expectSlowStarted("reconnect-post");
+
+            ResponseFuture<String> post = connection
+                .newRequest("/rest/slow", RequestType.POST)
+                .addQueryParam("delay", 300)
+                .addQueryParam("tag", "reconnect-post")
+                .getTextAsync();
+
+            assertTrue(started.await(5, TimeUnit.SECONDS));
+
+            factory.get(0).close();
+
+            // The server may already have acted on the POST, so it isn't sent again.
+
+            try {
+                post.get(5, TimeUnit.SECONDS);
+                fail();
+            } catch (ExecutionException e) {
+                // Expected.
+            }
+
+            assertEquals(1, factory.size());
+        } finally {
+            connection.close();
+        }
+    }
+
+    @Test
+    public void reconnectQueueIsBounded() throws Exception {
+        RecordingWebSocketFactory factory = new RecordingWebSocketFactory(getWebSocketFactory());
+        Connection connection = new Connection(String.format("ws://localhost:%d/ws", getPort()), factory);
+
+        try {
+            // The delay keeps the connection from coming back while the test runs.
+
+            connection.setReconnectPolicy(new ReconnectPolicy(60 * 1000, 60 * 1000, 2));
+
+            CountDownLatch started = EchoApi.expectSlowStarted("reconnect-queue");
+
+            ResponseFuture<String> get = connection
+                .newRequest("/rest/slow", RequestType.GET)
+                .addQueryParam("delay", 300)
+                .addQueryParam("tag", "reconnect-queue")
+                .getTextAsync();
+
+            assertTrue(started.await(5, TimeUnit.SECONDS));
+
+            factory.get(0).close();
+
+            assertTrue(factory.awaitLost(0, 5, TimeUnit.SECONDS));
+
+            // The GET waits for the connection, which leaves room for one more request.
+
+            ResponseFuture<String> queued = connection.newRequest("/rest/simple-ok", RequestType.GET).getTextAsync();
+            ResponseFuture<String> rejected = connection.newRequest("/rest/simple-ok", RequestType.GET).getTextAsync();
+
+            try {
+                rejected.get(5, TimeUnit.SECONDS);
+                fail();
+            } catch (ExecutionException e) {
+                assertEquals("Too many requests waiting for the connection", e.getCause().getMessage());
+            }
+
+            assertFalse(get.isDone());
+            assertFalse(queued.isDone());
+        } finally {
+            connection.close();
+        }
+    }
+
+    @Test
+    public void reconnectMaxAttempts() throws Exception {
+        // Only the first web socket opens, so every reconnect attempt fails.
+
+        RecordingWebSocketFactory factory = new RecordingWebSocketFactory(getWebSocketFactory(), 1);
+        Connection connection = new Connection(String.format("ws://localhost:%d/ws", getPort()), factory);
+
+        try {
+            connection.setReconnectPolicy(new ReconnectPolicy(10, 20, 100, 3));
+
+            CountDownLatch started = EchoApi.expectSlowStarted("reconnect-attempts");
+
+            ResponseFuture<String> get = connection
+                .newRequest("/rest/slow", RequestType.GET)
+                .addQueryParam("delay", 300)
+                .addQueryParam("tag", "reconnect-attempts")
+                .getTextAsync();
+
+            assertTrue(started.await(5, TimeUnit.SECONDS));
+
+            factory.get(0).close();
+
+            try {
+                get.get(5, TimeUnit.SECONDS);
+                fail();
+            } catch (ExecutionException e) {
+                // Expected.
+            }
+
+            assertEquals(1 + 3, factory.getAttempts());
+        } finally {
+            connection.close();
+        }
+    }
+
+    @Test
+    public void responseCache() throws Exception {
+        Connection connection = openConnection();
+        connection.setResponseCache(new ResponseCache(1024 * 1024));
+
+        String first = connection.newRequest("/rest/counter", RequestType.GET).getText();
+
+        assertEquals(first, connection.newRequest("/rest/counter", RequestType.GET).getText());
+
+        // Responses for a different query aren't shared.
+
+        assertNotEquals(first, connection.newRequest("/rest/counter", RequestType.GET).addQueryParam("a", 1).getText());
+
+        WsEndpoint.getContext().invalidate("/rest/counter");
+
+        // The server sends the invalidation ahead of the responses to later requests, so it has
+        // been processed once a round trip has completed.
+
+        assertEquals("OK", connection.newRequest("/rest/simple-ok", RequestType.GET).getText());
+
+        assertNotEquals(first, connection.newRequest("/rest/counter", RequestType.GET).getText());
+    }
+
+    @Test
+    public void singleFlight() throws Exception {
+        Connection connection = openConnection();
+        connection.setSingleFlight(true);
+
+        List<ResponseFuture<String>> futures = new ArrayList<>();
+
+        for (int i = 0; i < 5; i++) {
+            futures.add(
+                connection
+                    .newRequest("/rest/slow-counter", RequestType.GET)
+                    .addQueryParam("delay", 200)
+                    .getTextAsync()
+            );
+        }
+
+        // All requests share the one that went to the server.
+
+        String first = futures.get(0).get();
+
+        for (ResponseFuture<String> future : futures) {
+            assertEquals(first, future.get());
+        }
+
+        // Once it has completed, the next request goes to the server again.
+
+        assertNotEquals(
+            first,
+            connection
+                .newRequest("/rest/slow-counter", RequestType.GET)
+                .addQueryParam("delay", 0)
+                .getText()
+        );
+    }
+
+    @Test
+    public void batchedRequests() throws Exception {
+        Connection connection = openConnection();
+        connection.setBatchPolicy(10, 1000);
+
+        List<Request> requests = new ArrayList<>();
+        List<String> expected = new ArrayList<>();
+
+        for (int i = 0; i < 25; i++) {
+            requests.add(connection.newRequest("/rest/echo", RequestType.GET).addQueryParam("value", i));
+            expected.add("GET " + i);
+        }
+
+        assertEquals(expected, connection.executeAll(requests.toArray(new Request[requests.size()])).get());
+    }
+
+    @Test
+    public void outboundBackpressure() throws Exception {
+        // A socket that hasn't connected yet, so every frame stays queued.
+
+        final OutboundQueue outbound = new OutboundQueue(8) {
+            @Override
+            protected void write(Object frame) {
+                onWriteComplete();
+            }
+        };
+
+        Connection connection = new Connection(
+            String.format("ws://localhost:%d/ws", getPort()),
+            new WebSocketFactory() {
+                @Override
+                public WebSocket newInstance(String url, WebSocketCallback callback) throws Exception {
+                    return new WebSocket() {
+                        @Override
+                        public void sendText(String value) {
+                            assertTrue(outbound.offer(value));
+                        }
+
+                        @Override
+                        public void sendBinary(ByteBuffer value) {
+                            assertTrue(outbound.offer(value));
+                        }
+
+                        @Override
+                        public boolean isWritable() {
+                            return outbound.isWritable();
+                        }
+
+                        @Override
+                        public void close() {
+                            outbound.close();
+                        }
+                    };
+                }
+            }
+        );
+
+        Callback<String> callback = new Callback<String>() {
+            @Override
+            public void call(String value, Throwable e) {
+
+            }
+        };
+
+        try {
+            for (int i = 0; i < 4; i++) {
+                connection.newRequest("/rest/echo", RequestType.GET).getText(callback);
+            }
+
+            assertFalse(connection.isWritable());
+
+            try {
+                connection.newRequest("/rest/echo", RequestType.GET).getText(callback);
+                fail();
+            } catch (WsRestException e) {
+                // Expected.
+            }
+
+            // Once the socket is connected the queue drains and new requests are accepted again.
+
+            outbound.setReady();
+
+            assertEquals(0, outbound.size());
+            assertTrue(connection.isWritable());
+
+            connection.newRequest("/rest/echo", RequestType.GET).getText(callback);
+        } finally {
+            connection.close();
+        }
+    }
+
+    @Test
+    public void proxy() throws Exception {
+        EchoClient client = openConnection().createProxy(EchoClient.class);
+
+        assertEquals("GET Hello world!", client.echoGetQuery("Hello world!"));
+        assertEquals("POST Hello world!", client.echoPostForm("Hello world!"));
+        assertEquals("PATH Hello", client.echoPath("Hello"));
+        assertEquals("DELETE Hello world!", client.echoDeleteQuery("Hello world!").get());
+    }
+
+    @Test
+    public void proxyMalformedJson() throws Exception {
+        EchoClient client = openConnection().createProxy(EchoClient.class);
+
+        try {
+            client.echoGetJson("Hello world!");
+
+            fail();
+        } catch (WsRestException e) {
+            // Expected.
+        }
+
+        try {
+            client.echoGetJsonAsync("Hello world!").get(5, TimeUnit.SECONDS);
+
+            fail();
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof WsRestException);
+        }
+    }
+
+    @Test
+    public void preparedRequest() throws WsRestException {
+        Connection connection = openConnection();
+
+        PreparedRequest path = connection.prepareRequest("/rest/echo/{value}", RequestType.GET);
+        PreparedRequest query = connection.prepareRequest("/rest/echo", RequestType.GET)
+            .addQueryParam("value");
+        PreparedRequest form = connection.prepareRequest("/rest/echo", RequestType.POST)
+            .addFormParam("value");
+
+        for (int i = 0; i < 10; i++) {
+            assertEquals("PATH " + i, path.bind(i).getText());
+            assertEquals("GET Hello " + i, query.bind("Hello " + i).getText());
+            assertEquals("POST Hello " + i, form.bind("Hello " + i).getText());
+        }
+    }
+
+    @Test
+    public void loopback() throws WsRestException {
+        Connection connection = new Connection(
+            "loopback",
+            new LoopbackWebSocketFactory(WsEndpoint.getContext())
+        );
+
+        try {
+            assertEquals(
+                "GET Hello world!",
+                connection
+                    .newRequest("/rest/echo", RequestType.GET)
+                    .addQueryParam("value", "Hello world!")
+                    .getText()
+            );
+
+            try {
+                connection.newRequest("/rest/missing", RequestType.GET).getText();
+                fail();
+            } catch (WsRestException e) {
+                // Expected.
+            }
+        } finally {
+            connection.close();
+        }
+    }
 }
@@ -150,6 +150,27 @@ public class SerializationApi {
         return sum;
     }
 
+    @GET
+    @Path("/echo-int-list")
+    public int echoIntList(
+        @QueryParam("value") List<Integer> value
+    ) {
+        int sum = 0;
+        for (int i : value) {
+            sum += i;
+        }
+        return sum;
+    }
+
+    @SuppressWarnings("rawtypes")
+    @GET
+    @Path("/echo-raw-list")
+    public int echoRawList(
+        @QueryParam("value") List value
+    ) {
+        return value.size();
+    }
+
     @GET
     @Path("/echo-object")
     @Produces(MediaType.APPLICATION_JSON)
@@ -1,16 +1,25 @@
 package org.webathome.wsrest.test;
 
+import com.google.gson.reflect.TypeToken;
 import org.junit.Test;
 import org.junit.runner.RunWith;
 import org.junit.runners.JUnit4;
+import org.webathome.wsrest.client.ParameterParser;
+import org.webathome.wsrest.client.ResponseFuture;
 import org.webathome.wsrest.client.WsRestException;
 import org.webathome.wsrest.client.RequestType;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
 
 import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 
 @RunWith(JUnit4.class)
 public class SerializationFixture extends FixtureBase {
@@ -195,6 +204,102 @@ public class SerializationFixture extends FixtureBase {
         );
     }
 
+    @Test
+    public void malformedJsonAsync() throws Exception {
+        // The response is plain text, which doesn't parse as an object.
+
+        ResponseFuture<TestObject> future = openConnection()
+            .newRequest("/rest/echo", RequestType.GET)
+            .addQueryParam("value", "OK")
+            .getJsonAsync(TestObject.class);
+
+        try {
+            future.get(5, TimeUnit.SECONDS);
+
+            fail();
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof WsRestException);
+        }
+    }
+
+    @Test
+    public void echoIntList() throws WsRestException {
+        assertEquals(
+            1 + 2 + 3,
+            (int)openConnection()
+                .newRequest("/serialization/echo-int-array", RequestType.GET)
+                .addQueryParam("value", Arrays.asList(1, 2, 3))
+                .getResponse(Integer.class)
+        );
+    }
+
+    @Test
+    public void echoServerIntList() throws WsRestException {
+        assertEquals(
+            1 + 2 + 3,
+            (int)openConnection()
+                .newRequest("/serialization/echo-int-list", RequestType.GET)
+                .addQueryParam("value", new int[]{1, 2, 3})
+                .getResponse(Integer.class)
+        );
+    }
+
+    @Test
+    public void echoServerRawList() throws WsRestException {
+        // Without a type argument the items are strings.
+
+        assertEquals(
+            3,
+            (int)openConnection()
+                .newRequest("/serialization/echo-raw-list", RequestType.GET)
+                .addQueryParam("value", new String[]{"a", "b", "c"})
+                .getResponse(Integer.class)
+        );
+    }
+
+    @Test
+    public void genericListParser() throws WsRestException {
+        ParameterParser parser = ParameterParser.valueParser(new TypeToken<List<Long>>(){}.getType());
+
+        assertEquals(Arrays.asList(1L, 2L), parser.decode(new String[]{"1", "2"}));
+        assertSame(parser, ParameterParser.valueParser(new TypeToken<List<Long>>(){}.getType()));
+    }
+
+    @Test
+    public void customCodec() throws WsRestException {
+        ParameterParser.registerCodec(TestObject.class, new ParameterParser.Codec<TestObject>() {
+            @Override
+            public String encode(TestObject value) throws WsRestException {
+                return value.getA() + ":" + value.getB();
+            }
+
+            @Override
+            public TestObject decode(String value) throws WsRestException {
+                String[] parts = value.split(":");
+                TestObject result = new TestObject();
+                result.setA(parts[0]);
+                result.setB(Integer.parseInt(parts[1]));
+                return result;
+            }
+        });
+
+        try {
+            TestObject testObject = new TestObject();
+            testObject.setA("Hello world!");
+            testObject.setB(42);
+
+            assertEquals(
+                "GET Hello world!:42",
+                openConnection()
+                    .newRequest("/rest/echo", RequestType.GET)
+                    .addQueryParam("value", testObject)
+                    .getText()
+            );
+        } finally {
+            ParameterParser.unregisterCodec(TestObject.class);
+        }
+    }
+
     private void test(String method, Object value) throws WsRestException {
         assertEquals(
             value,
@@ -8,6 +8,9 @@ import javax.ws.rs.Path;
 import javax.ws.rs.Produces;
 import javax.ws.rs.QueryParam;
 import javax.ws.rs.core.MediaType;
+import java.nio.ByteBuffer;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
 
 @SuppressWarnings("UnusedDeclaration")
 @Path("/stream")
@@ -20,6 +23,9 @@ public class StreamApi {
     }
 
     private volatile Runnable closed;
+    private volatile boolean floodWritable;
+    private volatile long binaryPrefix;
+    private final CountDownLatch conflated = new CountDownLatch(1);
 
     public StreamApi() {
         instance = this;
@@ -29,6 +35,19 @@ public class StreamApi {
         this.closed = closed;
     }
 
+    public boolean isFloodWritable() {
+        return floodWritable;
+    }
+
+    public long getBinaryPrefix() {
+        return binaryPrefix;
+    }
+
+    // Waits until /conflate has handed all its messages to the stream.
+    public boolean awaitConflated(long timeout, TimeUnit unit) throws InterruptedException {
+        return conflated.await(timeout, unit);
+    }
+
     @STREAM
     @Path("/open-stream")
     public void openStream(
@@ -42,6 +61,11 @@ public class StreamApi {
                 System.out.println("Received " + message);
             }
 
+            @Override
+            public void onBinary(ByteBuffer message) {
+                System.out.println("Received " + message.remaining() + " bytes");
+            }
+
             @Override
             public void onClosed() {
                 System.out.println("Stream closed");
@@ -71,12 +95,131 @@ public class StreamApi {
         }.start();
     }
 
+    @STREAM
+    @Path("/flood")
+    public void flood(
+        @QueryParam("count") final int count,
+        final Stream stream
+    ) {
+        new Thread() {
+            @Override
+            public void run() {
+                try {
+                    for (int i = 0; i < count; i++) {
+                        stream.sendText(String.valueOf(i));
+                    }
+
+                    floodWritable = stream.isWritable();
+
+                    stream.close();
+                } catch (Exception e) {
+                    throw new RuntimeException(e);
+                }
+            }
+        }.start();
+    }
+
+    @STREAM
+    @Path("/binary-prefix")
+    public void binaryPrefix(
+        @QueryParam("prefix") final long prefix,
+        @QueryParam("value") final int value,
+        final Stream stream
+    ) {
+        new Thread() {
+            @Override
+            public void run() {
+                try {
+                    // The message starts after bytes that aren't part of it.
+
+                    ByteBuffer buffer = ByteBuffer.allocate(12);
+                    buffer.putLong(prefix);
+                    buffer.putInt(value);
+                    buffer.position(8);
+
+                    stream.sendBinary(buffer);
+
+                    binaryPrefix = buffer.getLong(0);
+
+                    stream.close();
+                } catch (Exception e) {
+                    throw new RuntimeException(e);
+                }
+            }
+        }.start();
+    }
+
+    @STREAM
+    @Path("/conflate")
+    public void conflate(
+        @QueryParam("count") final int count,
+        @QueryParam("keys") final int keys,
+        final Stream stream
+    ) {
+        new Thread() {
+            @Override
+            public void run() {
+                try {
+                    for (int i = 0; i < count; i++) {
+                        String key = String.valueOf(i % keys);
+                        stream.sendText(key, key + "=" + i);
+                    }
+
+                    conflated.countDown();
+
+                    stream.close();
+                } catch (Exception e) {
+                    throw new RuntimeException(e);
+                }
+            }
+        }.start();
+    }
+
+    @STREAM
+    @Path("/batched")
+    public void batched(
+        @QueryParam("count") final int count,
+        final Stream stream
+    ) throws WsRestException {
+        stream.setBatchPolicy(10, 50);
+
+        new Thread() {
+            @Override
+            public void run() {
+                try {
+                    for (int i = 0; i < count; i++) {
+                        stream.sendText(String.valueOf(i));
+
+                        // Give the timer a chance to flush a partial batch.
+
+                        if (i == count / 2) {
+                            Thread.sleep(200);
+                        }
+                    }
+
+                    stream.close();
+                } catch (Exception e) {
+                    throw new RuntimeException(e);
+                }
+            }
+        }.start();
+    }
+
     @STREAM
     @Path("/close-immediately")
     public void closeImmediately(Stream stream) throws WsRestException {
         stream.close();
     }
 
+    @STREAM
+    @Path("/send-and-close")
+    public void sendAndClose(@QueryParam("message") String message, Stream stream) throws WsRestException {
+        // The stream is closed before the request returns, so the client never gets an OPEN.
+
+        stream.sendText(message);
+        stream.close();
+    }
+
     @STREAM
     @Path("/echo")
     public void echo(final Stream stream) {
@@ -90,6 +233,15 @@ public class StreamApi {
                 }
             }
 
+            @Override
+            public void onBinary(ByteBuffer message) {
+                try {
+                    stream.sendBinary(message);
+                } catch (WsRestException e) {
+                    throw new RuntimeException(e);
+                }
+            }
+
             @Override
             public void onClosed() {
                 Runnable closed = StreamApi.this.closed;
@@ -3,13 +3,13 @@ package org.webathome.wsrest.test;
 import org.junit.Test;
 import org.junit.runner.RunWith;
 import org.junit.runners.JUnit4;
-import org.webathome.wsrest.client.RequestType;
-import org.webathome.wsrest.client.Stream;
-import org.webathome.wsrest.client.WsRestException;
+import org.webathome.wsrest.client.*;
+import org.webathome.wsrest.loopback.LoopbackWebSocketFactory;
 import org.webathome.wsrest.test.support.AutoResetEvent;
 
-import java.util.HashSet;
-import java.util.Set;
+import java.nio.ByteBuffer;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
 
 import static org.junit.Assert.*;
 
@@ -37,6 +37,11 @@ public class StreamFixture extends FixtureBase {
                 }
             }
 
+            @Override
+            public void onBinary(ByteBuffer message) {
+
+            }
+
             @Override
             public void onClosed() {
                 synchronized (syncRoot) {
@@ -88,6 +93,11 @@ public class StreamFixture extends FixtureBase {
 
             }
 
+            @Override
+            public void onBinary(ByteBuffer message) {
+
+            }
+
             @Override
             public void onClosed() {
 
@@ -139,6 +149,11 @@ public class StreamFixture extends FixtureBase {
                 messageEvent.set();
             }
 
+            @Override
+            public void onBinary(ByteBuffer message) {
+
+            }
+
             @Override
             public void onClosed() {
 
@@ -203,6 +218,11 @@ public class StreamFixture extends FixtureBase {
                 messageEvent.set();
             }
 
+            @Override
+            public void onBinary(ByteBuffer message) {
+
+            }
+
             @Override
             public void onClosed() {
 
@@ -226,4 +246,453 @@ public class StreamFixture extends FixtureBase {
 
         assertEquals(100, (int)nextId.get());
     }
+
+    @Test
+    public void echoBinary() throws WsRestException, InterruptedException {
+        Stream stream = openConnection()
+            .newRequest("/stream/echo", RequestType.STREAM)
+            .getStream();
+
+        final AutoResetEvent closedEvent = new AutoResetEvent(false);
+        final AutoResetEvent messageEvent = new AutoResetEvent(false);
+
+        StreamApi.getInstance().setClosed(new Runnable() {
+            @Override
+            public void run() {
+                closedEvent.set();
+            }
+        });
+
+        final Set<Integer> ids = new HashSet<>();
+        final Object syncRoot = new Object();
+
+        stream.setCallback(new Stream.Callback() {
+            @Override
+            public void onMessage(String message) {
+
+            }
+
+            @Override
+            public void onBinary(ByteBuffer message) {
+                assertEquals(4, message.remaining());
+
+                synchronized (syncRoot) {
+                    assertTrue(ids.add(message.getInt()));
+                }
+
+                messageEvent.set();
+            }
+
+            @Override
+            public void onClosed() {
+
+            }
+
+            @Override
+            public void onError(Throwable e) {
+
+            }
+        });
+
+        for (int i = 0; i < 100; i++) {
+            ByteBuffer message = ByteBuffer.allocate(4);
+            message.putInt(i);
+            message.flip();
+
+            stream.sendBinary(message);
+        }
+
+        while (true) {
+            synchronized (syncRoot) {
+                if (ids.size() == 100) {
+                    break;
+                }
+            }
+
+            messageEvent.waitOne();
+        }
+
+        stream.close();
+
+        closedEvent.waitOne();
+
+        assertEquals(100, ids.size());
+    }
+
+    @Test
+    public void messageBeforeClose() throws WsRestException, InterruptedException {
+        Stream stream = openConnection()
+            .newRequest("/stream/send-and-close", RequestType.STREAM)
+            .addQueryParam("message", "hello")
+            .getStream();
+
+        final AutoResetEvent closedEvent = new AutoResetEvent(false);
+        final List<String> received = Collections.synchronizedList(new ArrayList<String>());
+
+        stream.setCallback(new Stream.Callback() {
+            @Override
+            public void onMessage(String message) {
+                received.add(message);
+            }
+
+            @Override
+            public void onBinary(ByteBuffer message) {
+
+            }
+
+            @Override
+            public void onClosed() {
+                closedEvent.set();
+            }
+
+            @Override
+            public void onError(Throwable e) {
+
+            }
+        });
+
+        assertTrue(closedEvent.waitOne(5000));
+
+        assertEquals(Arrays.asList("hello"), received);
+    }
+
+    @Test
+    public void binaryKeepsPrefix() throws WsRestException, InterruptedException {
+        Stream stream = openConnection()
+            .newRequest("/stream/binary-prefix", RequestType.STREAM)
+            .addQueryParam("prefix", 0x0102030405060708L)
+            .addQueryParam("value", 42)
+            .getStream();
+
+        final AutoResetEvent closedEvent = new AutoResetEvent(false);
+        final Value<Integer> received = new Value<>(0);
+
+        stream.setCallback(new Stream.Callback() {
+            @Override
+            public void onMessage(String message) {
+
+            }
+
+            @Override
+            public void onBinary(ByteBuffer message) {
+                assertEquals(4, message.remaining());
+
+                received.set(message.getInt());
+            }
+
+            @Override
+            public void onClosed() {
+                closedEvent.set();
+            }
+
+            @Override
+            public void onError(Throwable e) {
+
+            }
+        });
+
+        assertTrue(closedEvent.waitOne(5000));
+
+        // The bytes in front of the message belong to the sender and must not be used for the
+        // header.
+
+        assertEquals(42, (int)received.get());
+        assertEquals(0x0102030405060708L, StreamApi.getInstance().getBinaryPrefix());
+    }
+
+    @Test
+    public void floodSlowConsumer() throws WsRestException, InterruptedException {
+        Stream stream = openConnection()
+            .newRequest("/stream/flood", RequestType.STREAM)
+            .addQueryParam("count", 200)
+            .getStream();
+
+        // Without a callback nothing is consumed, so the server runs out of credit.
+
+        Thread.sleep(500);
+
+        assertFalse(StreamApi.getInstance().isFloodWritable());
+
+        final AutoResetEvent closedEvent = new AutoResetEvent(false);
+        final Value<Integer> nextId = new Value<>(0);
+        final Object syncRoot = new Object();
+
+        stream.setCallback(new Stream.Callback() {
+            @Override
+            public void onMessage(String message) {
+                synchronized (syncRoot) {
+                    assertEquals((int)nextId.get(), Integer.parseInt(message));
+                    nextId.set(nextId.get() + 1);
+                }
+            }
+
+            @Override
+            public void onBinary(ByteBuffer message) {
+
+            }
+
+            @Override
+            public void onClosed() {
+                closedEvent.set();
+            }
+
+            @Override
+            public void onError(Throwable e) {
+
+            }
+        });
+
+        closedEvent.waitOne();
+
+        synchronized (syncRoot) {
+            assertEquals(200, (int)nextId.get());
+        }
+    }
+
+    @Test
+    public void conflateSlowConsumer() throws WsRestException, InterruptedException {
+        Stream stream = openConnection()
+            .newRequest("/stream/conflate", RequestType.STREAM)
+            .addQueryParam("count", 1000)
+            .addQueryParam("keys", 4)
+            .getStream();
+
+        // The consumer only starts once the server has sent everything. Until then the client
+        // doesn't give credit, so exactly one window goes out and the rest is conflated.
+
+        assertTrue(StreamApi.getInstance().awaitConflated(5, TimeUnit.SECONDS));
+
+        final AutoResetEvent closedEvent = new AutoResetEvent(false);
+        final Map<String, Integer> latest = new HashMap<>();
+        final Value<Integer> received = new Value<>(0);
+
+        stream.setCallback(new Stream.Callback() {
+            @Override
+            public void onMessage(String message) {
+                synchronized (latest) {
+                    String[] parts = message.split("=");
+                    latest.put(parts[0], Integer.parseInt(parts[1]));
+                    received.set(received.get() + 1);
+                }
+            }
+
+            @Override
+            public void onBinary(ByteBuffer message) {
+
+            }
+
+            @Override
+            public void onClosed() {
+                closedEvent.set();
+            }
+
+            @Override
+            public void onError(Throwable e) {
+
+            }
+        });
+
+        closedEvent.waitOne();
+
+        // Everything past the send window collapses into one message per key, and the last
+        // value for every key must always make it through.
+
+        synchronized (latest) {
+            assertEquals(64 + 4, (int)received.get());
+            assertEquals(996, (int)latest.get("0"));
+            assertEquals(997, (int)latest.get("1"));
+            assertEquals(998, (int)latest.get("2"));
+            assertEquals(999, (int)latest.get("3"));
+        }
+    }
+
+    @Test
+    public void batchedMessages() throws WsRestException, InterruptedException {
+        Stream stream = openConnection()
+            .newRequest("/stream/batched", RequestType.STREAM)
+            .addQueryParam("count", 195)
+            .getStream();
+
+        final AutoResetEvent closedEvent = new AutoResetEvent(false);
+        final Value<Integer> nextId = new Value<>(0);
+        final Object syncRoot = new Object();
+
+        stream.setCallback(new Stream.Callback() {
+            @Override
+            public void onMessage(String message) {
+                synchronized (syncRoot) {
+                    assertEquals((int)nextId.get(), Integer.parseInt(message));
+                    nextId.set(nextId.get() + 1);
+                }
+            }
+
+            @Override
+            public void onBinary(ByteBuffer message) {
+
+            }
+
+            @Override
+            public void onClosed() {
+                closedEvent.set();
+            }
+
+            @Override
+            public void onError(Throwable e) {
+
+            }
+        });
+
+        closedEvent.waitOne();
+
+        synchronized (syncRoot) {
+            assertEquals(195, (int)nextId.get());
+        }
+    }
+
+    @Test
+    public void resumeStream() throws Exception {
+        final WebSocketFactory factory = getWebSocketFactory();
+        final List<WebSocket> webSockets = new ArrayList<>();
+
+        Connection connection = new Connection(
+            String.format("ws://localhost:%d/ws", getPort()),
+            new WebSocketFactory() {
+                @Override
+                public WebSocket newInstance(String url, WebSocketCallback callback) throws Exception {
+                    WebSocket webSocket = factory.newInstance(url, callback);
+                    synchronized (webSockets) {
+                        webSockets.add(webSocket);
+                    }
+                    return webSocket;
+                }
+            }
+        );
+
+        try {
+            connection.setReconnectPolicy(new ReconnectPolicy(50, 1000, 100));
+
+            Stream stream = connection
+                .newRequest("/stream/open-stream", RequestType.STREAM)
+                .addQueryParam("count", 100)
+                .addQueryParam("interval", 5)
+                .getStream();
+
+            final AutoResetEvent closedEvent = new AutoResetEvent(false);
+            final Value<Integer> nextId = new Value<>(0);
+            final Value<Throwable> error = new Value<>();
+            final Object syncRoot = new Object();
+
+            stream.setCallback(new Stream.Callback() {
+                @Override
+                public void onMessage(String message) {
+                    synchronized (syncRoot) {
+                        assertEquals("Ping " + nextId.get(), message);
+                        nextId.set(nextId.get() + 1);
+                    }
+                }
+
+                @Override
+                public void onBinary(ByteBuffer message) {
+
+                }
+
+                @Override
+                public void onClosed() {
+                    closedEvent.set();
+                }
+
+                @Override
+                public void onError(Throwable e) {
+                    error.set(e);
+                }
+            });
+
+            Thread.sleep(100);
+
+            // Drop the connection halfway through. The stream continues on a new connection
+            // without losing or repeating messages.
+
+            synchronized (webSockets) {
+                webSockets.get(0).close();
+            }
+
+            assertTrue(closedEvent.waitOne(5000));
+
+            assertNull(error.get());
+
+            synchronized (syncRoot) {
+                assertEquals(100, (int)nextId.get());
+            }
+
+            synchronized (webSockets) {
+                assertEquals(2, webSockets.size());
+            }
+        } finally {
+            connection.close();
+        }
+    }
+
+    @Test
+    public void loopbackStream() throws Exception {
+        Connection connection = new Connection(
+            "loopback",
+            new LoopbackWebSocketFactory(WsEndpoint.getContext())
+        );
+
+        try {
+            Stream stream = connection
+                .newRequest("/stream/echo", RequestType.STREAM)
+                .getStream();
+
+            final AutoResetEvent messageEvent = new AutoResetEvent(false);
+            final Set<Integer> ids = new HashSet<>();
+            final Object syncRoot = new Object();
+
+            stream.setCallback(new Stream.Callback() {
+                @Override
+                public void onMessage(String message) {
+                    int id = Integer.parseInt(message);
+
+                    synchronized (syncRoot) {
+                        assertTrue(ids.add(id));
+                    }
+
+                    messageEvent.set();
+                }
+
+                @Override
+                public void onBinary(ByteBuffer message) {
+
+                }
+
+                @Override
+                public void onClosed() {
+
+                }
+
+                @Override
+                public void onError(Throwable e) {
+
+                }
+            });
+
+            for (int i = 0; i < 100; i++) {
+                stream.sendText(String.valueOf(i));
+            }
+
+            while (true) {
+                synchronized (syncRoot) {
+                    if (ids.size() == 100) {
+                        break;
+                    }
+                }
+
+                assertTrue(messageEvent.waitOne(5000));
+            }
+
+            stream.close();
+        } finally {
+            connection.close();
+        }
+    }
 }
@@ -18,12 +18,17 @@ public class WsEndpoint extends AbstractWsEndpoint {
                 .addService(EchoApi.class)
                 .addService(SerializationApi.class)
                 .addService(StreamApi.class)
+                .setResumeTimeout(5000)
                 .build();
         } catch (WsRestException e) {
             throw new IllegalStateException(e);
         }
     }
 
+    public static WsRestContext getContext() {
+        return CONTEXT;
+    }
+
     public WsEndpoint() {
         super(CONTEXT);
     }
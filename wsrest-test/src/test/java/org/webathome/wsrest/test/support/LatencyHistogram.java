@@ -0,0 +1,87 @@
+package org.webathome.wsrest.test.support;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+// Records latencies in microseconds with the bucket layout of an HDR histogram: every power of two
+// is split into 1024 linear buckets, so any value is recorded with three significant digits.
+// Recording doesn't take a lock.
+public class LatencyHistogram {
+    private static final int SUB_BUCKET_BITS = 11;
+    private static final int SUB_BUCKET_COUNT = 1 << SUB_BUCKET_BITS;
+    private static final int SUB_BUCKET_HALF_COUNT = SUB_BUCKET_COUNT / 2;
+    // Enough buckets for values up to about an hour.
+    private static final int BUCKET_COUNT = 22;
+
+    private final AtomicLongArray counts = new AtomicLongArray((BUCKET_COUNT + 1) * SUB_BUCKET_HALF_COUNT);
+    private final AtomicLong totalCount = new AtomicLong();
+    private final AtomicLong max = new AtomicLong();
+
+    public void record(long micros) {
+        if (micros < 0) {
+            micros = 0;
+        }
+
+        int index = Math.min(getIndex(micros), counts.length() - 1);
+
+        counts.incrementAndGet(index);
+        totalCount.incrementAndGet();
+
+        while (true) {
+            long current = max.get();
+            if (micros <= current || max.compareAndSet(current, micros)) {
+                break;
+            }
+        }
+    }
+
+    public long getTotalCount() {
+        return totalCount.get();
+    }
+
+    public long getMax() {
+        return max.get();
+    }
+
+    // Returns the highest value that's recorded in the same bucket as the value at the
+    // percentile, like an HDR histogram does.
+    public long getValueAtPercentile(double percentile) {
+        long total = totalCount.get();
+        if (total == 0) {
+            return 0;
+        }
+
+        long target = Math.max(1, (long)Math.ceil(percentile / 100 * total));
+        long count = 0;
+
+        for (int i = 0; i < counts.length(); i++) {
+            count += counts.get(i);
+
+            if (count >= target) {
+                return Math.min(getHighestValue(i), max.get());
+            }
+        }
+
+        return max.get();
+    }
+
+    private static int getIndex(long value) {
+        int bucket = 64 - Long.numberOfLeadingZeros(value | (SUB_BUCKET_COUNT - 1)) - SUB_BUCKET_BITS;
+        int subBucket = (int)(value >>> bucket);
+
+        return ((bucket + 1) << (SUB_BUCKET_BITS - 1)) + subBucket - SUB_BUCKET_HALF_COUNT;
+    }
+
+    private static long getHighestValue(int index) {
+        // The first bucket holds every value up to the sub bucket count exactly.
+
+        if (index < SUB_BUCKET_COUNT) {
+            return index;
+        }
+
+        int bucket = (index >> (SUB_BUCKET_BITS - 1)) - 1;
+        int subBucket = (index & (SUB_BUCKET_HALF_COUNT - 1)) + SUB_BUCKET_HALF_COUNT;
+
+        return (((long)subBucket + 1) << bucket) - 1;
+    }
+}
@@ -0,0 +1,433 @@
+package org.webathome.wsrest.test.support;
+
+import org.apache.commons.lang3.Validate;
+import org.webathome.wsrest.client.*;
+import org.webathome.wsrest.server.WsRestContext;
+
+import java.io.PrintStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+// Drives requests and stream messages at a constant rate over many connections. The schedule is
+// open loop: work is started at its planned time whether or not earlier work has completed, and
+// latency is measured from the planned time. A server that stalls therefore shows up in the
+// latency of everything that should have been sent during the stall, instead of slowing down
+// the generator and hiding it.
+public class LoadGenerator {
+    private static final long SECOND = TimeUnit.SECONDS.toNanos(1);
+
+    private final String url;
+    private final WebSocketFactory webSocketFactory;
+    private int connectionCount = 100;
+    private int streamCount;
+    private double requestRate = 1000;
+    private double messageRate;
+    private long duration = TimeUnit.SECONDS.toNanos(10);
+    private long drainTimeout = TimeUnit.SECONDS.toNanos(10);
+    private WsRestContext context;
+    private PrintStream out;
+
+    private final LatencyHistogram requestLatency = new LatencyHistogram();
+    private final LatencyHistogram messageLatency = new LatencyHistogram();
+    private final AtomicLong requestsSent = new AtomicLong();
+    private final AtomicLong requestsCompleted = new AtomicLong();
+    private final AtomicLong requestErrors = new AtomicLong();
+    private final AtomicLong messagesSent = new AtomicLong();
+    private final AtomicLong messagesReceived = new AtomicLong();
+    private final AtomicLong messageErrors = new AtomicLong();
+    private int maxQueuedRequests;
+    private int maxQueuedFrames;
+
+    public LoadGenerator(String url, WebSocketFactory webSocketFactory) {
+        Validate.notNull(url, "url");
+        Validate.notNull(webSocketFactory, "webSocketFactory");
+
+        this.url = url;
+        this.webSocketFactory = webSocketFactory;
+    }
+
+    public LoadGenerator setConnectionCount(int connectionCount) {
+        Validate.isTrue(connectionCount > 0, "connectionCount");
+
+        this.connectionCount = connectionCount;
+        return this;
+    }
+
+    // Streams are opened on /stream/echo and spread over the connections.
+    public LoadGenerator setStreamCount(int streamCount) {
+        Validate.isTrue(streamCount >= 0, "streamCount");
+
+        this.streamCount = streamCount;
+        return this;
+    }
+
+    // Requests per second, over all connections.
+    public LoadGenerator setRequestRate(double requestRate) {
+        Validate.isTrue(requestRate >= 0, "requestRate");
+
+        this.requestRate = requestRate;
+        return this;
+    }
+
+    // Stream messages per second, over all streams.
+    public LoadGenerator setMessageRate(double messageRate) {
+        Validate.isTrue(messageRate >= 0, "messageRate");
+
+        this.messageRate = messageRate;
+        return this;
+    }
+
+    public LoadGenerator setDuration(long duration, TimeUnit unit) {
+        Validate.isTrue(duration > 0, "duration");
+        Validate.notNull(unit, "unit");
+
+        this.duration = unit.toNanos(duration);
+        return this;
+    }
+
+    // How long to wait for outstanding responses once the run is over.
+    public LoadGenerator setDrainTimeout(long drainTimeout, TimeUnit unit) {
+        Validate.isTrue(drainTimeout >= 0, "drainTimeout");
+        Validate.notNull(unit, "unit");
+
+        this.drainTimeout = unit.toNanos(drainTimeout);
+        return this;
+    }
+
+    // The context of the server, to sample its queue depths during the run.
+    public LoadGenerator setContext(WsRestContext context) {
+        this.context = context;
+        return this;
+    }
+
+    // Receives a line of progress every second.
+    public LoadGenerator setOut(PrintStream out) {
+        this.out = out;
+        return this;
+    }
+
+    public Report run() throws Exception {
+        List<Connection> connections = new ArrayList<>();
+        List<Stream> streams = new ArrayList<>();
+
+        try {
+            // Open all connections before the clock starts.
+
+            List<ResponseFuture<String>> futures = new ArrayList<>();
+
+            for (int i = 0; i < connectionCount; i++) {
+                Connection connection = new Connection(url, webSocketFactory);
+                connections.add(connection);
+
+                futures.add(connection.newRequest("/rest/simple-ok", RequestType.GET).getTextAsync());
+            }
+
+            ResponseFuture.all(futures).get();
+
+            for (int i = 0; i < streamCount; i++) {
+                Stream stream = connections.get(i % connectionCount)
+                    .newRequest("/stream/echo", RequestType.STREAM)
+                    .getStream();
+
+                stream.setCallback(new MessageCallback());
+
+                streams.add(stream);
+            }
+
+            long start = System.nanoTime();
+            long end = generate(start, connections, streams);
+
+            drain();
+
+            return new Report(
+                (double)(end - start) / SECOND,
+                requestsSent.get(),
+                requestsCompleted.get(),
+                requestErrors.get(),
+                requestLatency,
+                messagesSent.get(),
+                messagesReceived.get(),
+                messageErrors.get(),
+                messageLatency,
+                maxQueuedRequests,
+                maxQueuedFrames
+            );
+        } finally {
+            for (Stream stream : streams) {
+                try {
+                    stream.close();
+                } catch (WsRestException e) {
+                    // The connection is already gone.
+                }
+            }
+
+            for (Connection connection : connections) {
+                connection.close();
+            }
+        }
+    }
+
+    private long generate(long start, List<Connection> connections, List<Stream> streams) {
+        long end = start + duration;
+        long requestIndex = 0;
+        long messageIndex = 0;
+        long nextRequest = requestRate > 0 ? start : Long.MAX_VALUE;
+        long nextMessage = messageRate > 0 && !streams.isEmpty() ? start : Long.MAX_VALUE;
+        long nextSample = start + SECOND;
+        long lastCompleted = 0;
+
+        while (true) {
+            long now = System.nanoTime();
+
+            if (now >= end) {
+                return now;
+            }
+
+            // Everything that's due is started, also when we're running behind.
+
+            while (nextRequest <= now) {
+                sendRequest(connections.get((int)(requestIndex % connections.size())), nextRequest);
+
+                requestIndex++;
+                nextRequest = start + (long)(requestIndex * (SECOND / requestRate));
+            }
+
+            while (nextMessage <= now) {
+                sendMessage(streams.get((int)(messageIndex % streams.size())), nextMessage);
+
+                messageIndex++;
+                nextMessage = start + (long)(messageIndex * (SECOND / messageRate));
+            }
+
+            if (nextSample <= now) {
+                long completed = requestsCompleted.get() + messagesReceived.get();
+
+                sample(completed - lastCompleted);
+
+                lastCompleted = completed;
+                nextSample += SECOND;
+            }
+
+            long wait = Math.min(Math.min(nextRequest, nextMessage), Math.min(nextSample, end)) - System.nanoTime();
+            if (wait > 0) {
+                LockSupport.parkNanos(wait);
+            }
+        }
+    }
+
+    private void sendRequest(Connection connection, final long planned) {
+        requestsSent.incrementAndGet();
+
+        try {
+            connection.newRequest("/rest/echo", RequestType.GET)
+                .addQueryParam("value", "load")
+                .getText(new Callback<String>() {
+                    @Override
+                    public void call(String value, Throwable e) {
+                        if (e != null) {
+                            requestErrors.incrementAndGet();
+                        } else {
+                            requestLatency.record((System.nanoTime() - planned) / 1000);
+                            requestsCompleted.incrementAndGet();
+                        }
+                    }
+                });
+        } catch (WsRestException e) {
+            // The connection pushed back, which counts against the server like a failed request.
+
+            requestErrors.incrementAndGet();
+        }
+    }
+
+    private void sendMessage(Stream stream, long planned) {
+        messagesSent.incrementAndGet();
+
+        try {
+            stream.sendText(String.valueOf(planned));
+        } catch (WsRestException e) {
+            messageErrors.incrementAndGet();
+        }
+    }
+
+    private void sample(long completedPerSecond) {
+        int queuedRequests = -1;
+        int queuedFrames = -1;
+
+        if (context != null) {
+            queuedRequests = context.getQueuedRequestCount();
+            queuedFrames = context.getQueuedFrameCount();
+
+            maxQueuedRequests = Math.max(maxQueuedRequests, queuedRequests);
+            maxQueuedFrames = Math.max(maxQueuedFrames, queuedFrames);
+        }
+
+        if (out != null) {
+            long outstanding =
+                requestsSent.get() - requestsCompleted.get() - requestErrors.get() +
+                messagesSent.get() - messagesReceived.get() - messageErrors.get();
+
+            out.println(String.format(
+                "%d/s completed, %d outstanding, %d queued requests, %d queued frames",
+                completedPerSecond,
+                outstanding,
+                queuedRequests,
+                queuedFrames
+            ));
+        }
+    }
+
+    private void drain() throws InterruptedException {
+        long deadline = System.nanoTime() + drainTimeout;
+
+        while (System.nanoTime() < deadline) {
+            if (
+                requestsCompleted.get() + requestErrors.get() >= requestsSent.get() &&
+                messagesReceived.get() + messageErrors.get() >= messagesSent.get()
+            ) {
+                return;
+            }
+
+            Thread.sleep(10);
+        }
+    }
+
+    private class MessageCallback implements Stream.Callback {
+        @Override
+        public void onMessage(String message) {
+            // The echo carries the time the message was planned to be sent.
+
+            try {
+                messageLatency.record((System.nanoTime() - Long.parseLong(message)) / 1000);
+                messagesReceived.incrementAndGet();
+            } catch (NumberFormatException e) {
+                messageErrors.incrementAndGet();
+            }
+        }
+
+        @Override
+        public void onBinary(ByteBuffer message) {
+        }
+
+        @Override
+        public void onClosed() {
+        }
+
+        @Override
+        public void onError(Throwable e) {
+        }
+    }
+
+    public static class Report {
+        private final double seconds;
+        private final long requestsSent;
+        private final long requestsCompleted;
+        private final long requestErrors;
+        private final LatencyHistogram requestLatency;
+        private final long messagesSent;
+        private final long messagesReceived;
+        private final long messageErrors;
+        private final LatencyHistogram messageLatency;
+        private final int maxQueuedRequests;
+        private final int maxQueuedFrames;
+
+        public Report(double seconds, long requestsSent, long requestsCompleted, long requestErrors, LatencyHistogram requestLatency, long messagesSent, long messagesReceived, long messageErrors, LatencyHistogram messageLatency, int maxQueuedRequests, int maxQueuedFrames) {
+            this.seconds = seconds;
+            this.requestsSent = requestsSent;
+            this.requestsCompleted = requestsCompleted;
+            this.requestErrors = requestErrors;
+            this.requestLatency = requestLatency;
+            this.messagesSent = messagesSent;
+            this.messagesReceived = messagesReceived;
+            this.messageErrors = messageErrors;
+            this.messageLatency = messageLatency;
+            this.maxQueuedRequests = maxQueuedRequests;
+            this.maxQueuedFrames = maxQueuedFrames;
+        }
+
+        public double getSeconds() {
+            return seconds;
+        }
+
+        public long getRequestsSent() {
+            return requestsSent;
+        }
+
+        public long getRequestsCompleted() {
+            return requestsCompleted;
+        }
+
+        public long getRequestErrors() {
+            return requestErrors;
+        }
+
+        public LatencyHistogram getRequestLatency() {
+            return requestLatency;
+        }
+
+        public long getMessagesSent() {
+            return messagesSent;
+        }
+
+        public long getMessagesReceived() {
+            return messagesReceived;
+        }
+
+        public long getMessageErrors() {
+            return messageErrors;
+        }
+
+        public LatencyHistogram getMessageLatency() {
+            return messageLatency;
+        }
+
+        public int getMaxQueuedRequests() {
+            return maxQueuedRequests;
+        }
+
+        public int getMaxQueuedFrames() {
+            return maxQueuedFrames;
+        }
+
+        public void print(PrintStream out) {
+            out.println(String.format(
+                "Requests: %d sent, %d completed, %d errors, %.1f/s",
+                requestsSent,
+                requestsCompleted,
+                requestErrors,
+                requestsCompleted / seconds
+            ));
+            printLatency(out, requestLatency);
+
+            if (messagesSent > 0) {
+                out.println(String.format(
+                    "Stream messages: %d sent, %d received, %d errors, %.1f/s",
+                    messagesSent,
+                    messagesReceived,
+                    messageErrors,
+                    messagesReceived / seconds
+                ));
+                printLatency(out, messageLatency);
+            }
+
+            out.println(String.format(
+                "Server: at most %d queued requests, %d queued frames",
+                maxQueuedRequests,
+                maxQueuedFrames
+            ));
+        }
+
+        private static void printLatency(PrintStream out, LatencyHistogram histogram) {
+            out.println(String.format(
+                "  latency p50 %.3f ms, p99 %.3f ms, p99.9 %.3f ms, max %.3f ms",
+                histogram.getValueAtPercentile(50) / 1000.0,
+                histogram.getValueAtPercentile(99) / 1000.0,
+                histogram.getValueAtPercentile(99.9) / 1000.0,
+                histogram.getMax() / 1000.0
+            ));
+        }
+    }
+}
@@ -0,0 +1,107 @@
+package org.webathome.wsrest.test.support;
+
+import org.webathome.wsrest.client.WebSocket;
+import org.webathome.wsrest.client.WebSocketCallback;
+import org.webathome.wsrest.client.WebSocketFactory;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+// Keeps the web sockets a connection opens, so tests can drop them and wait until the
+// connection has handled it. Once the limit has been reached, opening a web socket fails like a
+// server that can't be reached.
+public class RecordingWebSocketFactory implements WebSocketFactory {
+    private final WebSocketFactory factory;
+    private final int maxWebSockets;
+    private final List<WebSocket> webSockets = new ArrayList<>();
+    private final List<CountDownLatch> lost = new ArrayList<>();
+    private int attempts;
+
+    public RecordingWebSocketFactory(WebSocketFactory factory) {
+        this(factory, Integer.MAX_VALUE);
+    }
+
+    public RecordingWebSocketFactory(WebSocketFactory factory, int maxWebSockets) {
+        this.factory = factory;
+        this.maxWebSockets = maxWebSockets;
+    }
+
+    @Override
+    public WebSocket newInstance(String url, final WebSocketCallback callback) throws Exception {
+        synchronized (webSockets) {
+            attempts++;
+
+            if (webSockets.size() >= maxWebSockets) {
+                throw new Exception("Connection refused");
+            }
+
+            final CountDownLatch latch = new CountDownLatch(1);
+
+            // The latch is released after the connection has handled the loss of the socket.
+
+            WebSocket webSocket = factory.newInstance(url, new WebSocketCallback() {
+                @Override
+                public void onOpen() {
+                    callback.onOpen();
+                }
+
+                @Override
+                public void onClosed() {
+                    callback.onClosed();
+                    latch.countDown();
+                }
+
+                @Override
+                public void onStringAvailable(String value) {
+                    callback.onStringAvailable(value);
+                }
+
+                @Override
+                public void onBinaryAvailable(ByteBuffer value) {
+                    callback.onBinaryAvailable(value);
+                }
+
+                @Override
+                public void onError(Throwable e) {
+                    callback.onError(e);
+                    latch.countDown();
+                }
+            });
+
+            webSockets.add(webSocket);
+            lost.add(latch);
+            return webSocket;
+        }
+    }
+
+    public boolean awaitLost(int index, long timeout, TimeUnit unit) throws InterruptedException {
+        CountDownLatch latch;
+
+        synchronized (webSockets) {
+            latch = lost.get(index);
+        }
+
+        return latch.await(timeout, unit);
+    }
+
+    public WebSocket get(int index) {
+        synchronized (webSockets) {
+            return webSockets.get(index);
+        }
+    }
+
+    public int size() {
+        synchronized (webSockets) {
+            return webSockets.size();
+        }
+    }
+
+    public int getAttempts() {
+        synchronized (webSockets) {
+            return attempts;
+        }
+    }
+}